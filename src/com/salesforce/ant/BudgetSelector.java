@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Selects test classes which fit into a time budget.
+ * Changed test classes are taken first. Then tests are picked greedily by
+ * lines of changed classes they cover per ms (weighted set cover) using the
+ * exact entries of the coverage index and history durations. Approximate
+ * entries are narrowed by the static dependency graph, tests not in the
+ * index and classes no indexed test covers fall back to the graph. Class
+ * weight is its number of non-blank source lines.
+ * @author ss
+ */
+public class BudgetSelector {
+    /** Test history. */
+    private final TestHistory history;
+    /** Coverage index. */
+    private final CoverageIndex index;
+    /** Dependency graph. */
+    private final DependencyGraph graph;
+    /** Project src directory. */
+    private final File srcDir;
+    /** Changed classes not covered by the selection, with their weight. */
+    private final Map<String, Integer> skipped = new TreeMap<>();
+    /** Estimated duration of the selection, ms. */
+    private double estimated;
+    /** Changed classes covered by a test. */
+    private Map<String, Set<String>> covers;
+    /**
+     * Constructor.
+     * @param history test history.
+     * @param index coverage index.
+     * @param graph dependency graph.
+     * @param srcDir project src directory.
+     */
+    public BudgetSelector(final TestHistory history,
+            final CoverageIndex index, final DependencyGraph graph,
+            final File srcDir) {
+        this.history = history;
+        this.index = index;
+        this.graph = graph;
+        this.srcDir = srcDir;
+    }
+    /**
+     * Find classes and triggers changed since the last recorded run.
+     * @return class and trigger names.
+     */
+    public Set<String> findChanged() {
+        long lastRun = history.getLastRun();
+        Set<String> changed = new HashSet<>();
+        addChanged(new File(srcDir, "classes"), ".cls", lastRun, changed);
+        addChanged(new File(srcDir, "triggers"), ".trigger", lastRun,
+                changed);
+        return changed;
+    }
+    /**
+     * Select tests.
+     * @param candidates tests to select from.
+     * @param changed changed classes and triggers.
+     * @param budget time budget, ms.
+     * @return selected tests in candidates order.
+     */
+    public TestSelection select(final TestSelection candidates,
+            final Set<String> changed, final long budget) {
+        double defaultDuration = history.getMedianDuration();
+        covers = covers(candidates, changed);
+        Set<String> selected = new HashSet<>();
+        estimated = 0;
+        for (String test : candidates.getClasses()) {
+            double duration = duration(test, defaultDuration);
+            if (changed.contains(test) && estimated + duration <= budget) {
+                selected.add(test);
+                estimated += duration;
+            }
+        }
+        Map<String, Integer> uncovered = new HashMap<>();
+        for (String clazz : changed) {
+            if (!candidates.contains(clazz)) {
+                uncovered.put(clazz, weight(clazz));
+            }
+        }
+        for (String test : selected) {
+            covered(test).forEach(uncovered::remove);
+        }
+        // lazy greedy: gain of a test can only go down as classes get
+        // covered, so a test is taken if its fresh score still beats the
+        // best stale score
+        PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) ->
+                Double.compare(b.score, a.score));
+        for (String test : candidates.getClasses()) {
+            if (!selected.contains(test)) {
+                double score = score(test, uncovered, defaultDuration);
+                if (score > 0) {
+                    queue.add(new Candidate(test, score));
+                }
+            }
+        }
+        while (!queue.isEmpty()) {
+            String test = queue.poll().test;
+            double duration = duration(test, defaultDuration);
+            if (estimated + duration > budget) {
+                continue;
+            }
+            double score = score(test, uncovered, defaultDuration);
+            if (score <= 0) {
+                continue;
+            }
+            if (!queue.isEmpty() && score < queue.peek().score) {
+                queue.add(new Candidate(test, score));
+                continue;
+            }
+            selected.add(test);
+            estimated += duration;
+            covered(test).forEach(uncovered::remove);
+        }
+        skipped.clear();
+        skipped.putAll(uncovered);
+        TestSelection result = new TestSelection();
+        for (String test : candidates.getClasses()) {
+            if (selected.contains(test)) {
+                result.addAll(candidates.select(test));
+            }
+        }
+        return result;
+    }
+    /**
+     * @return changed classes not covered by the selection and their number
+     * of source lines.
+     */
+    public Map<String, Integer> getSkipped() {
+        return skipped;
+    }
+    /**
+     * @return estimated duration of the selection, ms.
+     */
+    public double getEstimated() {
+        return estimated;
+    }
+    /**
+     * @param test test class.
+     * @param uncovered uncovered changed classes with weight.
+     * @param defaultDuration duration for tests without history.
+     * @return covered lines per ms.
+     */
+    private double score(final String test,
+            final Map<String, Integer> uncovered,
+            final double defaultDuration) {
+        long gain = 0;
+        for (String clazz : covered(test)) {
+            Integer w = uncovered.get(clazz);
+            if (w != null) {
+                gain += w;
+            }
+        }
+        return gain / Math.max(duration(test, defaultDuration), 1d);
+    }
+    /**
+     * Changed classes each candidate covers. Only exact index entries are
+     * proof of coverage; an approximate entry has coverage of the whole
+     * batch, so it only confirms classes reached in the dependency graph.
+     * Classes the index does not know are taken from the graph.
+     * @param candidates candidate tests.
+     * @param changed changed classes and triggers.
+     * @return changed classes by test.
+     */
+    private Map<String, Set<String>> covers(final TestSelection candidates,
+            final Set<String> changed) {
+        Map<String, Set<String>> reached = graph.reachingTests(changed);
+        Map<String, Set<String>> result = new HashMap<>();
+        for (String test : candidates.getClasses()) {
+            Set<String> classes = new HashSet<>();
+            Set<String> indexed = index.getClasses(test);
+            boolean exact = index.isExact(test);
+            if (exact) {
+                for (String clazz : indexed) {
+                    if (changed.contains(clazz)) {
+                        classes.add(clazz);
+                    }
+                }
+            }
+            for (String clazz : reached.getOrDefault(test,
+                    Collections.emptySet())) {
+                if (index.getTests(clazz).isEmpty()
+                        || (!exact && indexed.contains(clazz))) {
+                    classes.add(clazz);
+                }
+            }
+            result.put(test, classes);
+        }
+        return result;
+    }
+    /**
+     * @param test test class.
+     * @return changed classes covered by the test.
+     */
+    private Set<String> covered(final String test) {
+        return covers.getOrDefault(test, Collections.emptySet());
+    }
+    /**
+     * @param test test class.
+     * @param defaultDuration duration for tests without history.
+     * @return last duration, ms.
+     */
+    private double duration(final String test, final double defaultDuration) {
+        TestHistory.Record r = history.get(test);
+        return r == null || r.getDuration() <= 0 ? defaultDuration
+                : r.getDuration();
+    }
+    /**
+     * @param clazz class or trigger name.
+     * @return non-blank source lines, at least 1.
+     */
+    private int weight(final String clazz) {
+        File source = new File(new File(srcDir, "classes"), clazz + ".cls");
+        if (!source.exists()) {
+            source = new File(new File(srcDir, "triggers"),
+                    clazz + ".trigger");
+        }
+        try {
+            return (int) Math.max(1, Files.readAllLines(source.toPath(),
+                    StandardCharsets.UTF_8).stream()
+                    .filter((l) -> !l.trim().isEmpty()).count());
+        } catch (IOException e) {
+            return 1;
+        }
+    }
+    /**
+     * Add sources changed after the time.
+     * @param dir sources directory.
+     * @param suffix source file suffix.
+     * @param time time.
+     * @param changed target.
+     */
+    private static void addChanged(final File dir, final String suffix,
+            final long time, final Set<String> changed) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.lastModified() > time) {
+                String name = f.getName();
+                changed.add(name.substring(0, name.length()
+                        - suffix.length()));
+            }
+        }
+    }
+// ============================================================================
+    /**
+     * Test with its score at the time it was queued.
+     */
+    private static class Candidate {
+        /** Test class. */
+        private final String test;
+        /** Covered lines per ms. */
+        private final double score;
+        /**
+         * Constructor.
+         * @param test test class.
+         * @param score covered lines per ms.
+         */
+        Candidate(final String test, final double score) {
+            this.test = test;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+/**
+ * AIMD concurrency limit for requests to the org.
+ * The limit grows by one per window of healthy requests and is halved when
+ * a request hits lock contention or org limits, like TCP congestion
+ * control. Latency is tracked per test class: when it degrades more than
+ * the tolerance above the best seen value the limit stops growing.
+ * @author ss
+ */
+public class ConcurrencyController {
+    /** Allowed latency degradation against the best latency. */
+    private static final double LATENCY_TOLERANCE = 2d;
+    /** Upper bound of the limit. */
+    private final int max;
+    /** Current limit. */
+    private double limit = 1d;
+    /** Requests in flight. */
+    private int inFlight;
+    /** Best latency per test class, ms. */
+    private double bestLatency = -1d;
+    /** Max limit reached. */
+    private int peak = 1;
+    /** Number of decreases. */
+    private int decreases;
+    /** Number of completed requests. */
+    private int completed;
+    /**
+     * Constructor.
+     * @param max upper bound of concurrent requests.
+     */
+    public ConcurrencyController(final int max) {
+        this.max = Math.max(1, max);
+    }
+    /**
+     * Try to start one more request.
+     * @return true if the request may start.
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+    /**
+     * Request done.
+     * @param latency request latency, ms.
+     * @param classes number of test classes in the request.
+     * @param congested request hit lock contention or org limits.
+     * @return decision: 'increase', 'hold' or 'decrease'.
+     */
+    public synchronized String release(final long latency, final int classes,
+            final boolean congested) {
+        inFlight--;
+        completed++;
+        if (congested) {
+            limit = Math.max(1d, limit / 2d);
+            decreases++;
+            return "decrease";
+        }
+        double perClass = (double) latency / Math.max(1, classes);
+        if (bestLatency < 0 || perClass < bestLatency) {
+            bestLatency = perClass;
+        }
+        if (perClass > bestLatency * LATENCY_TOLERANCE) {
+            return "hold";
+        }
+        limit = Math.min(max, limit + 1d / limit);
+        peak = Math.max(peak, (int) limit);
+        return "increase";
+    }
+    /**
+     * @return current limit.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+    /**
+     * @return max limit reached.
+     */
+    public synchronized int getPeak() {
+        return peak;
+    }
+    /**
+     * @return number of decreases.
+     */
+    public synchronized int getDecreases() {
+        return decreases;
+    }
+    /**
+     * @return number of completed requests.
+     */
+    public synchronized int getCompleted() {
+        return completed;
+    }
+}
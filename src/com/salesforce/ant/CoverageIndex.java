@@ -0,0 +1,348 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.RunTestsResult;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Persisted inverted index of coverage: test class to covered classes and
+ * class to covering test classes.
+ * The server returns coverage aggregated per request, so coverage of a
+ * batch is attributed to every test class of the batch. It is exact only
+ * for batches of one class (batchSize="1"), other entries are marked as
+ * approximate.
+ * <p>
+ * File format: magic, version, sorted string dictionary, then for every
+ * test its flag and sorted class ids, then for every class sorted test ids.
+ * Loaded postings stay id arrays, names are resolved only for the queried
+ * entry. Tests recorded after load are kept by name and replace the loaded
+ * entries, deleted classes and tests are masked until the next save.
+ * @author ss
+ */
+public class CoverageIndex {
+    /** Default index file name. */
+    public static final String FILE_NAME = "coverage-index.bin";
+    /** File magic. */
+    private static final int MAGIC = 0x53464349;
+    /** File format version. */
+    private static final int VERSION = 1;
+    /** No ids. */
+    private static final int[] NONE = new int[0];
+    /** Index file. */
+    private final File file;
+    /** Loaded dictionary, sorted, so the id order is the name order. */
+    private String[] names = new String[0];
+    /** Loaded test ids, sorted. */
+    private int[] tests = NONE;
+    /** Covered class ids by test position. */
+    private int[][] testClasses = new int[0][];
+    /** Exact coverage flags by test position. */
+    private boolean[] exact = new boolean[0];
+    /** Loaded class ids, sorted. */
+    private int[] classes = NONE;
+    /** Covering test ids by class position. */
+    private int[][] classTests = new int[0][];
+    /** Covered classes of tests recorded after load. */
+    private final Map<String, Set<String>> added = new TreeMap<>();
+    /** Recorded tests with approximate coverage. */
+    private final Set<String> approximate = new HashSet<>();
+    /** Deleted classes and tests, masked in the loaded entries. */
+    private final Set<String> removed = new HashSet<>();
+    /**
+     * Constructor.
+     * @param file index file.
+     */
+    public CoverageIndex(final File file) {
+        this.file = file;
+    }
+    /**
+     * Load index file, missing file means empty index.
+     * @param file index file.
+     * @return index.
+     * @throws BuildException error.
+     */
+    public static CoverageIndex load(final File file) throws BuildException {
+        CoverageIndex index = new CoverageIndex(file);
+        if (!file.exists()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // other format, index is built again.
+                return index;
+            }
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+            int[] tests = new int[in.readInt()];
+            int[][] testClasses = new int[tests.length][];
+            boolean[] exact = new boolean[tests.length];
+            for (int i = 0; i < tests.length; i++) {
+                tests[i] = in.readInt();
+                exact[i] = in.readBoolean();
+                testClasses[i] = readIds(in);
+            }
+            int[] classes = new int[in.readInt()];
+            int[][] classTests = new int[classes.length][];
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = in.readInt();
+                classTests[i] = readIds(in);
+            }
+            index.names = names;
+            index.tests = tests;
+            index.testClasses = testClasses;
+            index.exact = exact;
+            index.classes = classes;
+            index.classTests = classTests;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            throw new BuildException("read coverage index fail!", e);
+        }
+    }
+    /**
+     * Record coverage of one request, replaces old entries of its tests.
+     * @param batch tests of the request.
+     * @param result request result.
+     */
+    public void add(final TestSelection batch, final RunTestsResult result) {
+        Set<String> covered = new TreeSet<>();
+        if (result.getCodeCoverage() != null) {
+            for (CodeCoverageResult ccr : result.getCodeCoverage()) {
+                if (ccr.getNumLocations() > ccr.getNumLocationsNotCovered()) {
+                    covered.add(ccr.getName());
+                }
+            }
+        }
+        removed.removeAll(covered);
+        for (String test : batch.getClasses()) {
+            removed.remove(test);
+            added.put(test, covered);
+            if (batch.size() == 1) {
+                approximate.remove(test);
+            } else {
+                approximate.add(test);
+            }
+        }
+    }
+    /**
+     * Drop deleted classes and tests: entries of the tests and the classes
+     * from coverage of other tests.
+     * @param deleted deleted class, trigger and test class names.
+     */
+    public void remove(final Collection<String> deleted) {
+        removed.addAll(deleted);
+        for (String name : deleted) {
+            added.remove(name);
+            approximate.remove(name);
+        }
+        for (Map.Entry<String, Set<String>> e : added.entrySet()) {
+            if (!Collections.disjoint(e.getValue(), deleted)) {
+                Set<String> covered = new TreeSet<>(e.getValue());
+                covered.removeAll(deleted);
+                e.setValue(covered);
+            }
+        }
+    }
+    /**
+     * @param className class or trigger name.
+     * @return test classes which cover it, sorted.
+     */
+    public Set<String> getTests(final String className) {
+        Set<String> result = new TreeSet<>();
+        int p = removed.contains(className) ? -1
+                : position(classes, className);
+        if (p >= 0) {
+            for (int id : classTests[p]) {
+                if (!added.containsKey(names[id])
+                        && !removed.contains(names[id])) {
+                    result.add(names[id]);
+                }
+            }
+        }
+        added.forEach((test, covered) -> {
+            if (covered.contains(className)) {
+                result.add(test);
+            }
+        });
+        return Collections.unmodifiableSet(result);
+    }
+    /**
+     * @param test test class name.
+     * @return classes covered by the test, sorted.
+     */
+    public Set<String> getClasses(final String test) {
+        Set<String> covered = added.get(test);
+        if (covered != null) {
+            return Collections.unmodifiableSet(covered);
+        }
+        int p = removed.contains(test) ? -1 : position(tests, test);
+        return p < 0 ? Collections.emptySet() : resolve(testClasses[p]);
+    }
+    /**
+     * @param test test class name.
+     * @return true if the test coverage was recorded in its own request.
+     */
+    public boolean isExact(final String test) {
+        if (added.containsKey(test)) {
+            return !approximate.contains(test);
+        }
+        int p = removed.contains(test) ? -1 : position(tests, test);
+        return p >= 0 && exact[p];
+    }
+    /**
+     * @return true if there are no entries.
+     */
+    public boolean isEmpty() {
+        return tests.length == 0 && added.isEmpty();
+    }
+    /**
+     * Save index file.
+     * @throws BuildException error.
+     */
+    public void save() throws BuildException {
+        Map<String, Set<String>> classesByTest = new TreeMap<>(added);
+        for (int i = 0; i < tests.length; i++) {
+            if (!removed.contains(names[tests[i]])) {
+                classesByTest.putIfAbsent(names[tests[i]],
+                        resolve(testClasses[i]));
+            }
+        }
+        Map<String, Set<String>> testsByClass = new TreeMap<>();
+        TreeMap<String, Integer> ids = new TreeMap<>();
+        classesByTest.forEach((test, covered) -> {
+            ids.put(test, 0);
+            covered.forEach(clazz -> {
+                ids.put(clazz, 0);
+                testsByClass.computeIfAbsent(clazz, k -> new TreeSet<>())
+                        .add(test);
+            });
+        });
+        List<String> dictionary = new ArrayList<>(ids.keySet());
+        for (int i = 0; i < dictionary.size(); i++) {
+            ids.put(dictionary.get(i), i);
+        }
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(
+                        file.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dictionary.size());
+            for (String name : dictionary) {
+                out.writeUTF(name);
+            }
+            out.writeInt(classesByTest.size());
+            for (Map.Entry<String, Set<String>> e
+                    : classesByTest.entrySet()) {
+                out.writeInt(ids.get(e.getKey()));
+                out.writeBoolean(isExact(e.getKey()));
+                writeIds(out, e.getValue(), ids);
+            }
+            out.writeInt(testsByClass.size());
+            for (Map.Entry<String, Set<String>> e : testsByClass.entrySet()) {
+                out.writeInt(ids.get(e.getKey()));
+                writeIds(out, e.getValue(), ids);
+            }
+        } catch (IOException e) {
+            throw new BuildException("save coverage index fail!", e);
+        }
+    }
+    /**
+     * Find loaded entry of the name.
+     * @param entries sorted ids of the entries.
+     * @param name test or class name.
+     * @return entry position, negative if there is no entry.
+     */
+    private int position(final int[] entries, final String name) {
+        int id = Arrays.binarySearch(names, name);
+        return id < 0 ? -1 : Arrays.binarySearch(entries, id);
+    }
+    /**
+     * @param ids sorted ids.
+     * @return names in the same, sorted, order, deleted ones are skipped.
+     */
+    private Set<String> resolve(final int[] ids) {
+        Set<String> result = new LinkedHashSet<>();
+        for (int id : ids) {
+            if (!removed.contains(names[id])) {
+                result.add(names[id]);
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+    /**
+     * Read sorted id array.
+     * @param in input.
+     * @return ids.
+     * @throws IOException error.
+     */
+    private static int[] readIds(final DataInputStream in)
+            throws IOException {
+        int[] ids = new int[in.readInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readInt();
+        }
+        return ids;
+    }
+    /**
+     * Write sorted id array.
+     * @param out output.
+     * @param values names.
+     * @param ids dictionary ids, in name order.
+     * @throws IOException error.
+     */
+    private static void writeIds(final DataOutputStream out,
+            final Set<String> values, final Map<String, Integer> ids)
+            throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeInt(ids.get(value));
+        }
+    }
+}
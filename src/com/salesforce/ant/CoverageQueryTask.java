@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import java.io.File;
+import java.util.Set;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Query the coverage index written by the test task: which tests cover a
+ * class, or which classes a test covers.
+ * @author ss
+ */
+public class CoverageQueryTask extends Task {
+    /** Index file. */
+    private File indexFile = new File(TestTask.REPORT_FOLDER_NAME,
+            CoverageIndex.FILE_NAME);
+    /** Class or trigger to find covering tests for. */
+    private String className;
+    /** Test class to find covered classes for. */
+    private String test;
+    /** Property to set to the comma separated result. */
+    private String property;
+    @Override
+    public void execute() throws BuildException {
+        if ((className == null) == (test == null)) {
+            throw new BuildException("set either 'className' or 'test'");
+        }
+        if (!indexFile.exists()) {
+            throw new BuildException("coverage index not found ["
+                    + indexFile.getAbsolutePath() + "]");
+        }
+        CoverageIndex index = CoverageIndex.load(indexFile);
+        Set<String> result;
+        if (className != null) {
+            result = index.getTests(className);
+            log("tests covering [" + className + "]: " + result.size());
+            for (String t : result) {
+                log("    " + t + (index.isExact(t) ? "" : " (approximate)"));
+            }
+        } else {
+            result = index.getClasses(test);
+            log("classes covered by [" + test + "]"
+                    + (index.isExact(test) ? "" : " (approximate)") + ": "
+                    + result.size());
+            for (String c : result) {
+                log("    " + c);
+            }
+        }
+        if (property != null) {
+            getProject().setNewProperty(property, String.join(",", result));
+        }
+    }
+    /**
+     * @return the indexFile
+     */
+    public File getIndexFile() {
+        return indexFile;
+    }
+    /**
+     * @param indexFile the indexFile to set
+     */
+    public void setIndexFile(File indexFile) {
+        this.indexFile = indexFile;
+    }
+    /**
+     * @return the className
+     */
+    public String getClassName() {
+        return className;
+    }
+    /**
+     * @param className the className to set
+     */
+    public void setClassName(String className) {
+        this.className = className;
+    }
+    /**
+     * @return the test
+     */
+    public String getTest() {
+        return test;
+    }
+    /**
+     * @param test the test to set
+     */
+    public void setTest(String test) {
+        this.test = test;
+    }
+    /**
+     * @return the property
+     */
+    public String getProperty() {
+        return property;
+    }
+    /**
+     * @param property the property to set
+     */
+    public void setProperty(String property) {
+        this.property = property;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.LogLevel;
+
+/**
+ * Static dependency graph of apex classes and triggers.
+ * Sources are tokenized for identifiers, an identifier which is a class name
+ * is a reference to the class. A trigger is reached from every source which
+ * mentions its sObject. Parsed files are cached by content hash and parsed
+ * again only when changed.
+ * @author ss
+ */
+public class DependencyGraph {
+    /** Cache file name. */
+    public static final String CACHE_FILE_NAME = "dependency-graph.cache";
+    /** Apex class file extension. */
+    private static final String CLASS_EXT = ".cls";
+    /** Apex trigger file extension. */
+    private static final String TRIGGER_EXT = ".trigger";
+    /** Cache column separator. */
+    private static final String SEPARATOR = "\t";
+    /** Keywords, not stored as references. */
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "public", "private", "global", "protected", "static", "final",
+            "class", "void", "return", "new", "if", "else", "for", "while",
+            "true", "false", "null", "this", "string", "integer", "boolean",
+            "list", "set", "map", "id", "override", "virtual", "with",
+            "without", "sharing", "istest", "testmethod", "select", "from",
+            "where", "insert", "update", "delete", "upsert", "system",
+            "assert", "assertequals", "try", "catch", "throw", "trigger",
+            "on", "before", "after", "decimal", "double", "object"));
+    /** Ant task. */
+    private final TestTask task;
+    /** Project src directory. */
+    private final File srcDir;
+    /** Cache file, not used if null. */
+    private final File cacheFile;
+    /** Parsed sources by file name. */
+    private Map<String, Node> nodes = new ConcurrentHashMap<>();
+    /** Linked sources, index is the node id. */
+    private Node[] linked = new Node[0];
+    /** Ids of sources referencing a node, by node id. */
+    private int[][] dependents = new int[0][];
+    /** Node ids by lower case class or trigger name. */
+    private Map<String, int[]> byName = new HashMap<>();
+    /**
+     * Constructor.
+     * @param task ant task.
+     * @param cacheFile cache file, not used if null.
+     */
+    public DependencyGraph(final TestTask task, final File cacheFile) {
+        this.task = task;
+        this.srcDir = task.getSrcDir();
+        this.cacheFile = cacheFile;
+    }
+    /**
+     * Parse changed sources and rebuild the graph. First call reads the
+     * cache.
+     * @throws BuildException error.
+     */
+    public void update() throws BuildException {
+        try {
+            Map<String, Node> old = nodes.isEmpty() ? readCache() : nodes;
+            List<Path> files = new ArrayList<>();
+            files.addAll(list(new File(srcDir, "classes"), CLASS_EXT));
+            files.addAll(list(new File(srcDir, "triggers"), TRIGGER_EXT));
+            Map<String, Node> actual = new ConcurrentHashMap<>();
+            files.parallelStream().forEach((p) -> {
+                String file = p.getFileName().toString();
+                actual.put(file, parse(p, old.get(file)));
+            });
+            int parsed = 0;
+            for (Map.Entry<String, Node> e : actual.entrySet()) {
+                if (e.getValue() != old.get(e.getKey())) {
+                    parsed++;
+                }
+            }
+            nodes = actual;
+            link();
+            if (parsed > 0 || old.size() != actual.size()) {
+                writeCache();
+            }
+            if (task.isLogEnabled(LogLevel.VERBOSE.getLevel())) {
+                task.log("dependency graph: files [" + actual.size()
+                        + "], parsed [" + parsed + "]",
+                        LogLevel.VERBOSE.getLevel());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new BuildException("build dependency graph fail!", e);
+        }
+    }
+    /**
+     * Find test classes which can reach changed classes or triggers.
+     * @param changed changed class and trigger names.
+     * @return test class names.
+     */
+    public Set<String> reachingTestClasses(final Collection<String> changed) {
+        boolean[] visited = new boolean[linked.length];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (String name : changed) {
+            for (int id : byName.getOrDefault(name.toLowerCase(),
+                    new int[0])) {
+                if (!visited[id]) {
+                    visited[id] = true;
+                    queue.add(id);
+                }
+            }
+        }
+        Set<String> result = new TreeSet<>();
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            if (linked[id].test) {
+                result.add(linked[id].name);
+            }
+            for (int dependent : dependents[id]) {
+                if (!visited[dependent]) {
+                    visited[dependent] = true;
+                    queue.add(dependent);
+                }
+            }
+        }
+        return result;
+    }
+    /**
+     * Find test classes which can reach changed classes or triggers.
+     * Sets of reached changes are propagated along the reverse edges in one
+     * pass, a node is queued again only when its set grows.
+     * @param changed changed class and trigger names.
+     * @return test class name to reached changed names.
+     */
+    public Map<String, Set<String>> reachingTests(
+            final Collection<String> changed) {
+        List<String> names = new ArrayList<>(changed);
+        BitSet[] reached = new BitSet[linked.length];
+        boolean[] queued = new boolean[linked.length];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int i = 0; i < names.size(); i++) {
+            for (int id : byName.getOrDefault(names.get(i).toLowerCase(),
+                    new int[0])) {
+                if (reached[id] == null) {
+                    reached[id] = new BitSet();
+                }
+                reached[id].set(i);
+                if (!queued[id]) {
+                    queued[id] = true;
+                    queue.add(id);
+                }
+            }
+        }
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            queued[id] = false;
+            for (int dependent : dependents[id]) {
+                BitSet target = reached[dependent];
+                if (target == null) {
+                    target = new BitSet();
+                    reached[dependent] = target;
+                }
+                int before = target.cardinality();
+                target.or(reached[id]);
+                if (target.cardinality() != before && !queued[dependent]) {
+                    queued[dependent] = true;
+                    queue.add(dependent);
+                }
+            }
+        }
+        Map<String, Set<String>> result = new TreeMap<>();
+        for (int id = 0; id < linked.length; id++) {
+            if (linked[id].test && reached[id] != null) {
+                Set<String> classes = result.computeIfAbsent(
+                        linked[id].name, k -> new TreeSet<>());
+                reached[id].stream().forEach((i) -> classes.add(
+                        names.get(i)));
+            }
+        }
+        return result;
+    }
+    /**
+     * Number nodes and build reverse edges.
+     */
+    private void link() {
+        Node[] all = nodes.values().toArray(new Node[0]);
+        Map<String, Integer> classes = new HashMap<>();
+        Map<String, List<Integer>> triggersByObject = new HashMap<>();
+        Map<String, List<Integer>> names = new HashMap<>();
+        for (int id = 0; id < all.length; id++) {
+            Node n = all[id];
+            names.computeIfAbsent(n.name.toLowerCase(),
+                    k -> new ArrayList<>()).add(id);
+            if (n.sObject == null) {
+                classes.put(n.name.toLowerCase(), id);
+            } else {
+                triggersByObject.computeIfAbsent(n.sObject,
+                        k -> new ArrayList<>()).add(id);
+            }
+        }
+        List<Set<Integer>> edges = new ArrayList<>(all.length);
+        for (int id = 0; id < all.length; id++) {
+            edges.add(new HashSet<>());
+        }
+        for (int id = 0; id < all.length; id++) {
+            for (String ref : all[id].refs) {
+                Integer target = classes.get(ref);
+                if (target != null && target != id) {
+                    edges.get(target).add(id);
+                }
+                for (int trigger : triggersByObject.getOrDefault(ref,
+                        Collections.emptyList())) {
+                    if (trigger != id) {
+                        edges.get(trigger).add(id);
+                    }
+                }
+            }
+        }
+        int[][] reverse = new int[all.length][];
+        for (int id = 0; id < all.length; id++) {
+            reverse[id] = edges.get(id).stream().mapToInt(Integer::intValue)
+                    .toArray();
+        }
+        Map<String, int[]> ids = new HashMap<>();
+        names.forEach((name, list) -> ids.put(name, list.stream()
+                .mapToInt(Integer::intValue).toArray()));
+        linked = all;
+        dependents = reverse;
+        byName = ids;
+    }
+    /**
+     * Parse source unless cached entry matches.
+     * @param file source file.
+     * @param cached cached node or null.
+     * @return node.
+     */
+    private Node parse(final Path file, final Node cached) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file,
+                    BasicFileAttributes.class);
+            long mtime = attrs.lastModifiedTime().toMillis();
+            if (cached != null && cached.mtime == mtime
+                    && cached.size == attrs.size()) {
+                return cached;
+            }
+            byte[] content = Files.readAllBytes(file);
+            String hash = hash(content);
+            String fileName = file.getFileName().toString();
+            if (cached != null && cached.hash.equals(hash)) {
+                return new Node(fileName, mtime, attrs.size(), hash,
+                        cached.test, cached.sObject, cached.refs);
+            }
+            String source = new String(content, StandardCharsets.UTF_8);
+            String sObject = null;
+            if (fileName.endsWith(TRIGGER_EXT)) {
+                sObject = triggerObject(source);
+            }
+            boolean test = sObject == null
+                    && TestClassScanner.containsMarker(content)
+                    && TestClassScanner.isTestClass(source);
+            Set<String> refs = TestClassScanner.identifiers(source);
+            refs.removeAll(KEYWORDS);
+            return new Node(fileName, mtime, attrs.size(), hash, test,
+                    sObject, refs);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    /**
+     * @param source trigger source.
+     * @return lower case sObject name, empty if not found.
+     */
+    static String triggerObject(final String source) {
+        String[] words = source.replaceAll("/\\*.*?\\*/|//[^\\n]*", " ")
+                .trim().split("[^A-Za-z0-9_]+", 5);
+        return words.length > 3 && "on".equalsIgnoreCase(words[2])
+                ? words[3].toLowerCase() : "";
+    }
+    /**
+     * @param content file content.
+     * @return content hash.
+     */
+    private static String hash(final byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(content);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * @param dir directory.
+     * @param ext file extension.
+     * @return source files.
+     * @throws IOException error.
+     */
+    private static List<Path> list(final File dir, final String ext)
+            throws IOException {
+        if (!dir.exists()) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> stream = Files.list(dir.toPath())) {
+            return stream.filter((p) -> p.getFileName().toString()
+                    .endsWith(ext)).collect(Collectors.toList());
+        }
+    }
+    /**
+     * Read cache.
+     * @return cached nodes by file name.
+     * @throws IOException error.
+     */
+    private Map<String, Node> readCache() throws IOException {
+        Map<String, Node> cache = new HashMap<>();
+        if (cacheFile == null || !cacheFile.exists()) {
+            return cache;
+        }
+        for (String line : Files.readAllLines(cacheFile.toPath(),
+                StandardCharsets.UTF_8)) {
+            String[] p = line.split(SEPARATOR, -1);
+            if (p.length != 7) {
+                continue;
+            }
+            try {
+                Set<String> refs = p[6].isEmpty() ? new HashSet<>()
+                        : new HashSet<>(Arrays.asList(p[6].split(",")));
+                cache.put(p[0], new Node(p[0], Long.parseLong(p[1]),
+                        Long.parseLong(p[2]), p[3], "1".equals(p[4]),
+                        p[5].isEmpty() && !p[0].endsWith(TRIGGER_EXT)
+                                ? null : p[5], refs));
+            } catch (NumberFormatException e) {
+                task.log("broken cache line [" + line + "]",
+                        LogLevel.VERBOSE.getLevel());
+            }
+        }
+        return cache;
+    }
+    /**
+     * Write cache.
+     * @throws IOException error.
+     */
+    private void writeCache() throws IOException {
+        if (cacheFile == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(nodes.size());
+        for (String file : new TreeSet<>(nodes.keySet())) {
+            Node n = nodes.get(file);
+            lines.add(file + SEPARATOR + n.mtime + SEPARATOR + n.size
+                    + SEPARATOR + n.hash + SEPARATOR + (n.test ? "1" : "0")
+                    + SEPARATOR + (n.sObject == null ? "" : n.sObject)
+                    + SEPARATOR + String.join(",", new TreeSet<>(n.refs)));
+        }
+        File folder = cacheFile.getAbsoluteFile().getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+        Files.write(cacheFile.toPath(), lines, StandardCharsets.UTF_8);
+    }
+// ============================================================================
+    /**
+     * Parsed source.
+     */
+    private static class Node {
+        /** Class or trigger name. */
+        private final String name;
+        /** Modification time. */
+        private final long mtime;
+        /** File size. */
+        private final long size;
+        /** Content hash. */
+        private final String hash;
+        /** Test class. */
+        private final boolean test;
+        /** Lower case sObject of a trigger, null for classes. */
+        private final String sObject;
+        /** Lower case identifiers. */
+        private final Set<String> refs;
+        /**
+         * Constructor.
+         * @param file file name.
+         * @param mtime modification time.
+         * @param size file size.
+         * @param hash content hash.
+         * @param test test class.
+         * @param sObject trigger sObject, null for classes.
+         * @param refs lower case identifiers.
+         */
+        Node(final String file, final long mtime, final long size,
+                final String hash, final boolean test, final String sObject,
+                final Set<String> refs) {
+            this.name = file.substring(0, file.length()
+                    - (file.endsWith(TRIGGER_EXT) ? TRIGGER_EXT.length()
+                    : CLASS_EXT.length()));
+            this.mtime = mtime;
+            this.size = size;
+            this.hash = hash;
+            this.test = test;
+            this.sObject = sObject;
+            this.refs = refs;
+        }
+    }
+}
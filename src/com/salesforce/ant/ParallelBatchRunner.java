@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestsResult;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Runs test batches concurrently, the number of batches in flight is
+ * controlled by {@link ConcurrencyController}.
+ * Batches rejected by org limits are submitted again with a backoff,
+ * methods failed with 'UNABLE_TO_LOCK_ROW' are run again once.
+ * @author ss
+ */
+public class ParallelBatchRunner {
+    /** Max attempts for a batch rejected by org limits. */
+    private static final int MAX_ATTEMPTS = 5;
+    /** Initial backoff, ms. */
+    private static final long BACKOFF = 1000;
+    /** Lock contention error. */
+    private static final String LOCK_ERROR = "UNABLE_TO_LOCK_ROW";
+    /**
+     * Errors which mean the org is overloaded. A read timeout is not one of
+     * them: the server may still run the tests, a resubmit doubles the load.
+     */
+    private static final String[] LIMIT_ERRORS = {"REQUEST_LIMIT_EXCEEDED",
+        "ConcurrentPerOrgLongTxn", "CONCURRENT", "SERVER_UNAVAILABLE",
+        "TOO_MANY", LOCK_ERROR};
+    /** Ant task. */
+    private final TestTask task;
+    /** Max concurrent requests. */
+    private final int max;
+    /** Concurrency controller. */
+    private final ConcurrencyController controller;
+    /**
+     * Constructor.
+     * @param task ant task.
+     * @param maxConcurrency max concurrent requests.
+     */
+    public ParallelBatchRunner(final TestTask task,
+            final int maxConcurrency) {
+        this.task = task;
+        this.max = Math.max(1, maxConcurrency);
+        this.controller = new ConcurrencyController(max);
+    }
+    /**
+     * Run batches.
+     * @param batches test batches.
+     * @return merged result.
+     * @throws BuildException error.
+     */
+    public RunTestsResult run(final List<TestSelection> batches)
+            throws BuildException {
+        Deque<Attempt> queue = new ArrayDeque<>();
+        for (TestSelection batch : batches) {
+            queue.add(new Attempt(batch, 0, false));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(max);
+        CompletionService<Attempt> cs = new ExecutorCompletionService<>(pool);
+        RunTestsResult merged = null;
+        int pending = 0;
+        try {
+            while (!queue.isEmpty() || pending > 0) {
+                while (!queue.isEmpty() && controller.tryAcquire()) {
+                    Attempt attempt = queue.poll();
+                    cs.submit(() -> execute(attempt));
+                    pending++;
+                }
+                Attempt done = cs.take().get();
+                pending--;
+                boolean congested = done.error != null
+                        ? isLimitError(done.error) : hasLockFailures(
+                                done.result);
+                String decision = controller.release(done.latency,
+                        done.batch.size(), congested);
+                task.event(RunEventLog.CONCURRENCY, "decision", decision,
+                        "limit", controller.getLimit(),
+                        "latency", done.latency,
+                        "classes", done.batch.size());
+                if (done.error != null) {
+                    if (!isLimitError(done.error)
+                            || done.attempt + 1 >= MAX_ATTEMPTS) {
+                        throw done.error;
+                    }
+                    task.log("org limit hit, batch is queued again ["
+                            + done.error.getMessage() + "]",
+                            Project.MSG_WARN);
+                    queue.addFirst(new Attempt(done.batch, done.attempt + 1,
+                            done.retry));
+                    continue;
+                }
+                merged = merge(merged, done, queue);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("test run interrupted", e);
+        } catch (ExecutionException e) {
+            throw new BuildException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        task.log("concurrency: requests [" + controller.getCompleted()
+                + "], peak [" + controller.getPeak() + "], back-offs ["
+                + controller.getDecreases() + "]");
+        return merged;
+    }
+    /**
+     * Merge result of the attempt, queue lock failures for one more run.
+     * @param merged results so far.
+     * @param done completed attempt.
+     * @param queue attempts queue.
+     * @return merged result.
+     */
+    private RunTestsResult merge(final RunTestsResult merged,
+            final Attempt done, final Deque<Attempt> queue) {
+        if (done.retry) {
+            return TestResultMerger.retry(merged, done.result);
+        }
+        task.logFailures(done.result);
+        task.recordCoverage(done.batch, done.result);
+        RunTestsResult result = task.collect(merged, done.result);
+        TestSelection locked = new TestSelection();
+        for (RunTestFailure rtf : done.result.getFailures()) {
+            if (rtf.getMessage() != null
+                    && rtf.getMessage().contains(LOCK_ERROR)) {
+                locked.addMethod(rtf.getName(), rtf.getMethodName());
+            }
+        }
+        if (!locked.isEmpty()) {
+            task.log("lock contention, run again [" + locked + "]",
+                    Project.MSG_WARN);
+            queue.add(new Attempt(locked, 0, true));
+        }
+        return result;
+    }
+    /**
+     * Execute attempt in a worker thread.
+     * @param attempt attempt.
+     * @return completed attempt.
+     * @throws InterruptedException interrupted during backoff.
+     */
+    private Attempt execute(final Attempt attempt)
+            throws InterruptedException {
+        if (attempt.attempt > 0) {
+            Thread.sleep(BACKOFF << (attempt.attempt - 1));
+        }
+        long start = System.currentTimeMillis();
+        try {
+            attempt.result = task.makeRequest(attempt.batch);
+        } catch (BuildException e) {
+            attempt.error = e;
+        }
+        attempt.latency = System.currentTimeMillis() - start;
+        return attempt;
+    }
+    /**
+     * @param result batch result.
+     * @return true if some tests failed on row locks.
+     */
+    private static boolean hasLockFailures(final RunTestsResult result) {
+        for (RunTestFailure rtf : result.getFailures()) {
+            if (rtf.getMessage() != null
+                    && rtf.getMessage().contains(LOCK_ERROR)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * @param error request error.
+     * @return true if error means the org is overloaded.
+     */
+    private static boolean isLimitError(final Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            String text = t.toString();
+            for (String pattern : LIMIT_ERRORS) {
+                if (text.contains(pattern)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+// ============================================================================
+    /**
+     * One attempt to run a batch.
+     */
+    private static class Attempt {
+        /** Tests. */
+        private final TestSelection batch;
+        /** Attempt number, starts from 0. */
+        private final int attempt;
+        /** Lock contention retry. */
+        private final boolean retry;
+        /** Result. */
+        private RunTestsResult result;
+        /** Error. */
+        private BuildException error;
+        /** Latency, ms. */
+        private long latency;
+        /**
+         * Constructor.
+         * @param batch tests.
+         * @param attempt attempt number.
+         * @param retry lock contention retry.
+         */
+        Attempt(final TestSelection batch, final int attempt,
+                final boolean retry) {
+            this.batch = batch;
+            this.attempt = attempt;
+            this.retry = retry;
+        }
+    }
+}
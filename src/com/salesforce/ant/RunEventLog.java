@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.salesforce.report.JSONUtil;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Run event log in JSON Lines format.
+ * Events are queued by the task and written in batches by a background
+ * thread, JSON formatting is done on the writer thread too.
+ * @author ss
+ */
+public class RunEventLog implements AutoCloseable {
+    /** Run started. */
+    public static final String RUN_STARTED = "run_started";
+    /** Test class submitted to the server. */
+    public static final String TEST_STARTED = "test_started";
+    /** Test method finished. */
+    public static final String TEST_FINISHED = "test_finished";
+    /** One request to the server is done. */
+    public static final String SHARD_DONE = "shard_done";
+    /** Concurrency limit decision. */
+    public static final String CONCURRENCY = "concurrency";
+    /** Coverage computed. */
+    public static final String COVERAGE_COMPUTED = "coverage_computed";
+    /** Run finished. */
+    public static final String RUN_FINISHED = "run_finished";
+    /** Max events written at once. */
+    private static final int BATCH_SIZE = 512;
+    /** End of the queue marker. */
+    private static final Event POISON = new Event(null, 0, null);
+    /** Event queue. */
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<>();
+    /** Log file. */
+    private final File file;
+    /** Writer thread. */
+    private final Thread writer;
+    /** Write error. */
+    private volatile IOException error;
+    /**
+     * Constructor. Appends to existing file.
+     * @param file log file.
+     */
+    public RunEventLog(final File file) {
+        this.file = file;
+        this.writer = new Thread(this::writeLoop, "sf-test-event-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    /**
+     * Add event. After a write error events are dropped, nothing would
+     * drain the queue.
+     * @param type event type.
+     * @param fields field names and values, one after another.
+     * @return false if the event is dropped because of a write error.
+     */
+    public boolean event(final String type, final Object... fields) {
+        if (error != null) {
+            return false;
+        }
+        queue.add(new Event(type, System.currentTimeMillis(), fields));
+        return true;
+    }
+    /**
+     * Write queued events and stop writer.
+     * @throws IOException write error.
+     */
+    @Override
+    public void close() throws IOException {
+        queue.add(POISON);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+    /**
+     * Writer thread body.
+     */
+    private void writeLoop() {
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+        List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder sb = new StringBuilder();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(file.toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND),
+                StandardCharsets.UTF_8))) {
+            boolean done = false;
+            while (!done) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Event e : batch) {
+                    if (e == POISON) {
+                        done = true;
+                        break;
+                    }
+                    sb.setLength(0);
+                    e.toJSON(sb);
+                    out.write(sb.append('\n').toString());
+                }
+                batch.clear();
+                out.flush();
+            }
+        } catch (IOException e) {
+            error = e;
+            queue.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    /**
+     * @param value value.
+     * @return true if value is not a finite number.
+     */
+    private static boolean isNaN(final Object value) {
+        return (value instanceof Double || value instanceof Float)
+                && !Double.isFinite(((Number) value).doubleValue());
+    }
+// ============================================================================
+    /**
+     * Queued event.
+     */
+    private static class Event {
+        /** Event type. */
+        private final String type;
+        /** Event time. */
+        private final long time;
+        /** Field names and values. */
+        private final Object[] fields;
+        /**
+         * Constructor.
+         * @param type event type.
+         * @param time event time.
+         * @param fields field names and values.
+         */
+        Event(final String type, final long time, final Object[] fields) {
+            this.type = type;
+            this.time = time;
+            this.fields = fields;
+        }
+        /**
+         * Represent as JSON object.
+         * @param sb target.
+         */
+        void toJSON(final StringBuilder sb) {
+            sb.append("{\"event\":");
+            JSONUtil.appendString(sb, type);
+            sb.append(",\"time\":").append(time);
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                sb.append(',');
+                JSONUtil.appendString(sb, String.valueOf(fields[i]));
+                sb.append(':');
+                Object value = fields[i + 1];
+                if (value == null || isNaN(value)) {
+                    sb.append("null");
+                } else if (value instanceof Number
+                        || value instanceof Boolean) {
+                    sb.append(value);
+                } else {
+                    JSONUtil.appendString(sb, value.toString());
+                }
+            }
+            sb.append('}');
+        }
+    }
+}
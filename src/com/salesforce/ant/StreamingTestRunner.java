@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.salesforce.report.CoverageLevel;
+import com.salesforce.report.ReportBuilder;
+import com.salesforce.report.RunTestsResponseParser;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Runs tests with a plain SOAP request and parses the response as a stream.
+ * The full API result is never kept in memory, results go straight into
+ * the report builder.
+ * @author ss
+ */
+public class StreamingTestRunner {
+    /** SOAP envelope namespace. */
+    private static final String SOAP_NS =
+            "http://schemas.xmlsoap.org/soap/envelope/";
+    /** Apex API namespace. */
+    private static final String APEX_NS =
+            "http://soap.sforce.com/2006/08/apex";
+    /** Ant task. */
+    private final TestTask task;
+    /** Apex SOAP endpoint. */
+    private final String endpoint;
+    /** Session id. */
+    private final String sessionId;
+    /**
+     * Constructor.
+     * @param task ant task.
+     * @param endpoint apex SOAP endpoint.
+     * @param sessionId session id.
+     */
+    public StreamingTestRunner(final TestTask task, final String endpoint,
+            final String sessionId) {
+        this.task = task;
+        this.endpoint = endpoint;
+        this.sessionId = sessionId;
+    }
+    /**
+     * Run tests.
+     * Coverage is not calculated by the server if the builder doesn't
+     * need it.
+     * @param testCase tests.
+     * @param builder report builder.
+     * @return total time.
+     * @throws BuildException error.
+     */
+    public double run(final TestSelection testCase,
+            final ReportBuilder builder) throws BuildException {
+        task.log("run tests on server (streaming response), please wait...");
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL(endpoint)
+                    .openConnection();
+            con.setRequestMethod("POST");
+            con.setDoOutput(true);
+            con.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+            con.setRequestProperty("SOAPAction", "\"\"");
+            con.setRequestProperty("Accept-Encoding", "gzip");
+            try (OutputStream out = con.getOutputStream()) {
+                writeRequest(out, testCase,
+                        builder.getCoverageLevel() == CoverageLevel.NONE);
+            }
+            int status = con.getResponseCode();
+            InputStream raw = status >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? con.getErrorStream() : con.getInputStream();
+            if (raw == null) {
+                throw new IOException("HTTP " + status);
+            }
+            if ("gzip".equalsIgnoreCase(con.getContentEncoding())) {
+                raw = new GZIPInputStream(raw);
+            }
+            RunTestsResponseParser parser = new RunTestsResponseParser(
+                    builder);
+            try (InputStream in = new BufferedInputStream(raw)) {
+                parser.parse(in);
+            }
+            return parser.getTotalTime();
+        } catch (IOException | XMLStreamException e) {
+            throw new BuildException("connection problem!", e);
+        }
+    }
+    /**
+     * Write 'runTests' SOAP request.
+     * @param out target stream.
+     * @param testCase tests.
+     * @param skipCoverage skip code coverage.
+     * @throws XMLStreamException error.
+     */
+    private void writeRequest(final OutputStream out,
+            final TestSelection testCase, final boolean skipCoverage)
+            throws XMLStreamException {
+        XMLStreamWriter w = XMLOutputFactory.newInstance()
+                .createXMLStreamWriter(out, "UTF-8");
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("soapenv", "Envelope", SOAP_NS);
+        w.writeNamespace("soapenv", SOAP_NS);
+        w.writeNamespace("apex", APEX_NS);
+        w.writeStartElement("soapenv", "Header", SOAP_NS);
+        w.writeStartElement("apex", "SessionHeader", APEX_NS);
+        element(w, "sessionId", sessionId);
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeStartElement("soapenv", "Body", SOAP_NS);
+        w.writeStartElement("apex", "runTests", APEX_NS);
+        w.writeStartElement("apex", "RunTestsRequest", APEX_NS);
+        element(w, "allTests", "false");
+        if (!testCase.hasMethods()) {
+            for (String clazz : testCase.getClasses()) {
+                element(w, "classes", clazz);
+            }
+        }
+        if (skipCoverage) {
+            element(w, "skipCodeCoverage", "true");
+        }
+        if (testCase.hasMethods()) {
+            for (String clazz : testCase.getClasses()) {
+                w.writeStartElement("apex", "tests", APEX_NS);
+                element(w, "className", clazz);
+                for (String method : testCase.getMethods(clazz)) {
+                    element(w, "testMethods", method);
+                }
+                w.writeEndElement();
+            }
+        }
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeEndDocument();
+        w.flush();
+        w.close();
+    }
+    /**
+     * Write simple element.
+     * @param w writer.
+     * @param name element name.
+     * @param value element value.
+     * @throws XMLStreamException error.
+     */
+    private static void element(final XMLStreamWriter w, final String name,
+            final String value) throws XMLStreamException {
+        w.writeStartElement("apex", name, APEX_NS);
+        w.writeCharacters(value);
+        w.writeEndElement();
+    }
+}
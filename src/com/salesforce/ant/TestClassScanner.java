@@ -0,0 +1,343 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.LogLevel;
+
+/**
+ * Finds apex test classes (annotated with '@isTest') in the project.
+ * Files are scanned in parallel, the result for every file is cached by
+ * file modification time and size, so unchanged files are not read again.
+ * @author ss
+ */
+public class TestClassScanner {
+    /** Cache file name. */
+    public static final String CACHE_FILE_NAME = "test-discovery.cache";
+    /** Apex class file extension. */
+    private static final String CLASS_EXT = ".cls";
+    /** Cache line separator. */
+    private static final String SEPARATOR = "\t";
+    /** Annotation marker in lower case, used for prefilter. */
+    private static final byte[] MARKER = "@istest".getBytes(
+            StandardCharsets.US_ASCII);
+    /** Ant task. */
+    private final TestTask task;
+    /** Classes directory. */
+    private final File classesDir;
+    /** Cache file. */
+    private final File cacheFile;
+    /**
+     * Constructor.
+     * @param task ant task.
+     * @param cacheFile cache file.
+     */
+    public TestClassScanner(final TestTask task, final File cacheFile) {
+        this.task = task;
+        this.classesDir = new File(task.getSrcDir(), "classes");
+        this.cacheFile = cacheFile;
+    }
+    /**
+     * Scan classes directory.
+     * @return sorted names of test classes.
+     * @throws BuildException error.
+     */
+    public Set<String> scan() throws BuildException {
+        Set<String> result = new TreeSet<>();
+        if (!classesDir.exists()) {
+            return result;
+        }
+        try {
+            Map<String, Entry> cache = readCache();
+            List<Path> files;
+            try (Stream<Path> stream = Files.list(classesDir.toPath())) {
+                files = stream.filter((p) -> p.getFileName().toString()
+                        .endsWith(CLASS_EXT)).collect(Collectors.toList());
+            }
+            Map<String, Entry> actual = new ConcurrentHashMap<>();
+            files.parallelStream().forEach((p) -> {
+                String name = p.getFileName().toString();
+                name = name.substring(0, name.length() - CLASS_EXT.length());
+                actual.put(name, check(p, cache.get(name)));
+            });
+            int hits = 0;
+            for (Map.Entry<String, Entry> e : actual.entrySet()) {
+                if (e.getValue() == cache.get(e.getKey())) {
+                    hits++;
+                }
+                if (e.getValue().test) {
+                    result.add(e.getKey());
+                }
+            }
+            if (hits != actual.size() || cache.size() != actual.size()) {
+                writeCache(actual);
+            }
+            if (task.isLogEnabled(LogLevel.VERBOSE.getLevel())) {
+                task.log("test discovery: files [" + actual.size()
+                        + "], cached [" + hits + "], tests ["
+                        + result.size() + "]", LogLevel.VERBOSE.getLevel());
+            }
+            return result;
+        } catch (IOException | UncheckedIOException e) {
+            throw new BuildException("test discovery fail!", e);
+        }
+    }
+    /**
+     * Check file, use cached value if file is not changed.
+     * @param file class file.
+     * @param cached cached entry or null.
+     * @return entry.
+     */
+    private Entry check(final Path file, final Entry cached) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file,
+                    BasicFileAttributes.class);
+            long mtime = attrs.lastModifiedTime().toMillis();
+            long size = attrs.size();
+            if (cached != null && cached.mtime == mtime
+                    && cached.size == size) {
+                return cached;
+            }
+            byte[] content = Files.readAllBytes(file);
+            boolean test = containsMarker(content) && isTestClass(
+                    new String(content, StandardCharsets.UTF_8));
+            return new Entry(mtime, size, test);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    /**
+     * Cheap case insensitive search of the annotation in raw bytes.
+     * @param content file content.
+     * @return true if the marker present.
+     */
+    static boolean containsMarker(final byte[] content) {
+        int last = content.length - MARKER.length;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < MARKER.length
+                    && toLowerCase(content[i + j]) == MARKER[j]) {
+                j++;
+            }
+            if (j == MARKER.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Lower case for ASCII letter.
+     * @param b byte.
+     * @return lower case byte.
+     */
+    private static byte toLowerCase(final byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b;
+    }
+    /**
+     * Check that the top level class is annotated with '@isTest'.
+     * Comments and string literals are skipped.
+     * @param source class source.
+     * @return true if the class is a test class.
+     */
+    static boolean isTestClass(final String source) {
+        int i = 0;
+        int len = source.length();
+        boolean annotation = false;
+        boolean test = false;
+        int parens = 0;
+        while (i < len) {
+            char c = source.charAt(i);
+            if (c == '/' && i + 1 < len && source.charAt(i + 1) == '/') {
+                while (i < len && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < len
+                    && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                i = end < 0 ? len : end + 2;
+            } else if (c == '\'') {
+                i++;
+                while (i < len && source.charAt(i) != '\'') {
+                    i += source.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+            } else if (c == '(') {
+                parens++;
+                i++;
+            } else if (c == ')') {
+                parens--;
+                i++;
+            } else if (c == '@') {
+                annotation = true;
+                i++;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < len
+                        && Character.isJavaIdentifierPart(source.charAt(i))) {
+                    i++;
+                }
+                String word = source.substring(start, i);
+                if (annotation && parens == 0
+                        && "istest".equalsIgnoreCase(word)) {
+                    test = true;
+                } else if (parens == 0 && "class".equalsIgnoreCase(word)) {
+                    return test;
+                }
+                annotation = false;
+            } else if (c == '{') {
+                // body started without class keyword (interface, enum).
+                return false;
+            } else {
+                i++;
+            }
+        }
+        return false;
+    }
+    /**
+     * Collect identifiers used in the source, comments and string literals
+     * are skipped. Apex is case insensitive, so names are in lower case.
+     * @param source apex source.
+     * @return identifiers in lower case.
+     */
+    static Set<String> identifiers(final String source) {
+        Set<String> result = new HashSet<>();
+        int i = 0;
+        int len = source.length();
+        while (i < len) {
+            char c = source.charAt(i);
+            if (c == '/' && i + 1 < len && source.charAt(i + 1) == '/') {
+                while (i < len && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < len
+                    && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                i = end < 0 ? len : end + 2;
+            } else if (c == '\'') {
+                i++;
+                while (i < len && source.charAt(i) != '\'') {
+                    i += source.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < len
+                        && Character.isJavaIdentifierPart(source.charAt(i))) {
+                    i++;
+                }
+                result.add(source.substring(start, i).toLowerCase());
+            } else {
+                i++;
+            }
+        }
+        return result;
+    }
+    /**
+     * Read cache file.
+     * @return cache entries.
+     * @throws IOException error.
+     */
+    private Map<String, Entry> readCache() throws IOException {
+        Map<String, Entry> cache = new ConcurrentHashMap<>();
+        if (cacheFile == null || !cacheFile.exists()) {
+            return cache;
+        }
+        for (String line : Files.readAllLines(cacheFile.toPath(),
+                StandardCharsets.UTF_8)) {
+            String[] parts = line.split(SEPARATOR);
+            if (parts.length != 4) {
+                continue;
+            }
+            try {
+                cache.put(parts[0], new Entry(Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]), "1".equals(parts[3])));
+            } catch (NumberFormatException e) {
+                task.log("broken cache line [" + line + "]",
+                        LogLevel.VERBOSE.getLevel());
+            }
+        }
+        return cache;
+    }
+    /**
+     * Write cache file.
+     * @param entries entries.
+     * @throws IOException error.
+     */
+    private void writeCache(final Map<String, Entry> entries)
+            throws IOException {
+        if (cacheFile == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(entries.size());
+        for (String name : new TreeSet<>(entries.keySet())) {
+            Entry e = entries.get(name);
+            lines.add(name + SEPARATOR + e.mtime + SEPARATOR + e.size
+                    + SEPARATOR + (e.test ? "1" : "0"));
+        }
+        File folder = cacheFile.getParentFile();
+        if (folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+        Files.write(cacheFile.toPath(), lines, StandardCharsets.UTF_8);
+    }
+// ============================================================================
+    /**
+     * Cached scan result for one file.
+     */
+    private static class Entry {
+        /** Last modified time. */
+        private final long mtime;
+        /** File size. */
+        private final long size;
+        /** Is test class. */
+        private final boolean test;
+        /**
+         * Constructor.
+         * @param mtime last modified time.
+         * @param size file size.
+         * @param test is test class.
+         */
+        Entry(final long mtime, final long size, final boolean test) {
+            this.mtime = mtime;
+            this.size = size;
+            this.test = test;
+        }
+    }
+}
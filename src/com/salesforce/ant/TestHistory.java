@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.salesforce.report.CoverageElement;
+import com.salesforce.report.FailureElement;
+import com.salesforce.report.ReportContext;
+import com.salesforce.report.ReportSink;
+import com.salesforce.report.ResultStore;
+import com.salesforce.report.TestElement;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Persisted history of test class outcomes: number of runs and failures,
+ * last duration and time of the last run. Method results of the last runs
+ * are kept in a {@link ResultStore} next to the history file.
+ * @author ss
+ */
+public class TestHistory {
+    /** Default history file name. */
+    public static final String FILE_NAME = "test-history.tsv";
+    /** Method results file name. */
+    public static final String RESULTS_FILE_NAME = "test-results.bin";
+    /** Number of runs kept in the method results. */
+    private static final int RESULT_RUNS = 31;
+    /**
+     * Maximum number of method results kept, about 16 bytes each. The oldest
+     * runs are dropped first, methods of a run over it are not kept.
+     */
+    private static final int RESULT_ROWS = 1 << 21;
+    /** Column separator. */
+    private static final String SEPARATOR = "\t";
+    /** History file. */
+    private final File file;
+    /** Records by test class name. */
+    private final Map<String, Record> records = new HashMap<>();
+    /** Method results of the last runs. */
+    private ResultStore results = new ResultStore();
+    /**
+     * Constructor.
+     * @param file history file.
+     */
+    public TestHistory(final File file) {
+        this.file = file;
+    }
+    /**
+     * Load history file, missing file means empty history.
+     * @param file history file.
+     * @param task ant task, logs a broken results file.
+     * @return history.
+     * @throws BuildException error.
+     */
+    public static TestHistory load(final File file, final TestTask task)
+            throws BuildException {
+        TestHistory history = new TestHistory(file);
+        try {
+            history.results = ResultStore.open(history.getResultsFile());
+        } catch (IOException | RuntimeException e) {
+            task.log("read test results [" + history.getResultsFile()
+                    + "] fail, results start over: " + e,
+                    Project.MSG_WARN);
+        }
+        if (!file.exists()) {
+            return history;
+        }
+        try {
+            for (String line : Files.readAllLines(file.toPath(),
+                    StandardCharsets.UTF_8)) {
+                String[] p = line.split(SEPARATOR);
+                if (p.length != 5) {
+                    continue;
+                }
+                try {
+                    history.records.put(p[0], new Record(
+                            Integer.parseInt(p[1]), Integer.parseInt(p[2]),
+                            Double.parseDouble(p[3]), Long.parseLong(p[4])));
+                } catch (NumberFormatException e) {
+                    // broken line, the class is treated as new.
+                }
+            }
+            return history;
+        } catch (IOException e) {
+            throw new BuildException("read test history fail!", e);
+        }
+    }
+    /**
+     * @param className test class name.
+     * @return record or null if the class never run.
+     */
+    public Record get(final String className) {
+        return records.get(className);
+    }
+    /**
+     * Iterate over records.
+     * @param action action for test class name and record.
+     */
+    public void forEach(final BiConsumer<String, Record> action) {
+        records.forEach(action);
+    }
+    /**
+     * @return median of known durations, 1 if there is no history.
+     */
+    public double getMedianDuration() {
+        List<Double> durations = new ArrayList<>();
+        records.forEach((clazz, r) -> {
+            if (r.getDuration() > 0) {
+                durations.add(r.getDuration());
+            }
+        });
+        if (durations.isEmpty()) {
+            return 1d;
+        }
+        Collections.sort(durations);
+        return durations.get(durations.size() / 2);
+    }
+    /**
+     * @return time of the last recorded run, 0 if there is no history.
+     */
+    public long getLastRun() {
+        long last = 0;
+        for (Record r : records.values()) {
+            last = Math.max(last, r.getLastRun());
+        }
+        return last;
+    }
+    /**
+     * @return method results of the last runs.
+     */
+    public ResultStore getResults() {
+        return results;
+    }
+    /**
+     * @return true if there are no records.
+     */
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+    /**
+     * Create sink which adds outcomes of the run when the report is done.
+     * @param time run time.
+     * @return report sink.
+     */
+    public ReportSink recorder(final long time) {
+        return new Recorder(time);
+    }
+    /**
+     * Save history file.
+     * @throws BuildException error.
+     */
+    public void save() throws BuildException {
+        List<String> lines = new ArrayList<>(records.size());
+        for (String clazz : new TreeSet<>(records.keySet())) {
+            Record r = records.get(clazz);
+            lines.add(clazz + SEPARATOR + r.runs + SEPARATOR + r.failures
+                    + SEPARATOR + r.duration + SEPARATOR + r.lastRun);
+        }
+        try {
+            File folder = file.getAbsoluteFile().getParentFile();
+            if (!folder.exists()) {
+                folder.mkdirs();
+            }
+            // a broken history is never left behind
+            Path temp = Files.createTempFile(folder.toPath(), file.getName(),
+                    ".tmp");
+            try {
+                Files.write(temp, lines, StandardCharsets.UTF_8);
+                Files.move(temp, file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            results.retainRuns(RESULT_RUNS);
+            results.save(getResultsFile());
+        } catch (IOException e) {
+            throw new BuildException("save test history fail!", e);
+        }
+    }
+    /**
+     * @return method results file.
+     */
+    private File getResultsFile() {
+        return new File(file.getAbsoluteFile().getParentFile(),
+                RESULTS_FILE_NAME);
+    }
+// ============================================================================
+    /**
+     * History of one test class.
+     */
+    public static class Record {
+        /** Number of runs. */
+        private int runs;
+        /** Number of runs with failed methods. */
+        private int failures;
+        /** Duration of the last run, sum of method durations. */
+        private double duration;
+        /** Time of the last run. */
+        private long lastRun;
+        /**
+         * Constructor.
+         * @param runs number of runs.
+         * @param failures number of failed runs.
+         * @param duration last duration.
+         * @param lastRun last run time.
+         */
+        Record(final int runs, final int failures, final double duration,
+                final long lastRun) {
+            this.runs = runs;
+            this.failures = failures;
+            this.duration = duration;
+            this.lastRun = lastRun;
+        }
+        /**
+         * Failure rate with add-one smoothing, so a single run does not
+         * give 0 or 100%.
+         * @return failure rate.
+         */
+        public double getFailureRate() {
+            return (failures + 1d) / (runs + 2d);
+        }
+        /**
+         * @return the runs
+         */
+        public int getRuns() {
+            return runs;
+        }
+        /**
+         * @return the failures
+         */
+        public int getFailures() {
+            return failures;
+        }
+        /**
+         * @return the duration
+         */
+        public double getDuration() {
+            return duration;
+        }
+        /**
+         * @return the lastRun
+         */
+        public long getLastRun() {
+            return lastRun;
+        }
+    }
+    /**
+     * Updates records of the classes and appends method results of the run
+     * to the store. Tests come in class order, so only the current class is
+     * aggregated.
+     */
+    private class Recorder implements ReportSink {
+        /** Run time. */
+        private final long time;
+        /** Run id in the store, set by the first test. */
+        private int run = -1;
+        /** Current class, null before the first test. */
+        private String clazz;
+        /** Current class has failed methods. */
+        private boolean failed;
+        /** Duration of the current class. */
+        private double duration;
+        /**
+         * Constructor.
+         * @param time run time.
+         */
+        Recorder(final long time) {
+            this.time = time;
+        }
+        @Override
+        public void start(final ReportContext context) {
+        }
+        @Override
+        public void coverage(final CoverageElement element) {
+        }
+        @Override
+        public void failure(final FailureElement failure) {
+        }
+        @Override
+        public void test(final TestElement te) {
+            if (!te.getClassName().equals(clazz)) {
+                end();
+                clazz = te.getClassName();
+                failed = false;
+                duration = 0;
+            }
+            failed |= te.isIsFail();
+            duration += te.getDuration();
+            if (run < 0) {
+                run = results.addRun(time);
+            }
+            while (results.size() >= RESULT_ROWS && run > 0) {
+                results.retainRuns(results.getRuns() - 1);
+                run--;
+            }
+            if (results.size() < RESULT_ROWS) {
+                results.append(run, te);
+            }
+        }
+        @Override
+        public void end() {
+            if (clazz == null) {
+                return;
+            }
+            Record r = new Record(1, failed ? 1 : 0, duration, time);
+            Record old = records.get(clazz);
+            if (old != null) {
+                r.runs += old.runs;
+                r.failures += old.failures;
+            }
+            records.put(clazz, r);
+            clazz = null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders test classes so that likely failing and cheap tests run first:
+ * score is failure rate (plus a bonus when the test class was changed
+ * after its last run) divided by the last duration.
+ * @author ss
+ */
+public class TestPrioritizer {
+    /** Score bonus for changed test classes. */
+    private static final double CHANGED_BONUS = 1d;
+    /** Test history. */
+    private final TestHistory history;
+    /** Apex classes directory. */
+    private final File classesDir;
+    /**
+     * Constructor.
+     * @param history test history.
+     * @param srcDir project src directory.
+     */
+    public TestPrioritizer(final TestHistory history, final File srcDir) {
+        this.history = history;
+        this.classesDir = new File(srcDir, "classes");
+    }
+    /**
+     * Order tests.
+     * @param tests tests in declaration order.
+     * @return tests in priority order, ties keep declaration order.
+     */
+    public TestSelection prioritize(final TestSelection tests) {
+        double defaultDuration = history.getMedianDuration();
+        Map<String, Double> scores = new HashMap<>();
+        for (String clazz : tests.getClasses()) {
+            scores.put(clazz, score(clazz, defaultDuration));
+        }
+        List<String> ordered = new ArrayList<>(tests.getClasses());
+        Collections.sort(ordered, (a, b) -> Double.compare(scores.get(b),
+                scores.get(a)));
+        TestSelection result = new TestSelection();
+        for (String clazz : ordered) {
+            result.addAll(tests.select(clazz));
+        }
+        return result;
+    }
+    /**
+     * Calculate priority score.
+     * @param clazz test class.
+     * @param defaultDuration duration for classes without history.
+     * @return score, bigger runs earlier.
+     */
+    double score(final String clazz, final double defaultDuration) {
+        TestHistory.Record r = history.get(clazz);
+        double risk = r == null ? 1d : r.getFailureRate();
+        File source = new File(classesDir, clazz + ".cls");
+        if (r == null || source.lastModified() > r.getLastRun()) {
+            risk += CHANGED_BONUS;
+        }
+        double duration = r == null || r.getDuration() <= 0
+                ? defaultDuration : r.getDuration();
+        return risk / Math.max(duration, 1d);
+    }
+}
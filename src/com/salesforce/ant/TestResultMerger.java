@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.CodeLocation;
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
+import com.sforce.soap.apex.RunTestsResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges results of several test runs into one result.
+ * @author ss
+ */
+public final class TestResultMerger {
+    /**
+     * Utility class.
+     */
+    private TestResultMerger() {
+    }
+    /**
+     * Merge result of the failed methods retry.
+     * Method which passed on retry replaces its failure, coverage of the
+     * first run is kept.
+     * @param result first run result.
+     * @param retry retry result.
+     * @return merged result.
+     */
+    public static RunTestsResult retry(final RunTestsResult result,
+            final RunTestsResult retry) {
+        Set<String> passed = new HashSet<>();
+        List<RunTestSuccess> successes = new ArrayList<>();
+        for (RunTestSuccess rts : result.getSuccesses()) {
+            successes.add(rts);
+        }
+        for (RunTestSuccess rts : retry.getSuccesses()) {
+            passed.add(key(rts.getName(), rts.getMethodName()));
+            successes.add(rts);
+        }
+        List<RunTestFailure> failures = new ArrayList<>();
+        for (RunTestFailure rtf : result.getFailures()) {
+            if (!passed.contains(key(rtf.getName(), rtf.getMethodName()))) {
+                failures.add(rtf);
+            }
+        }
+        return create(result.getCodeCoverage(), successes, failures,
+                result.getNumTestsRun(),
+                result.getTotalTime() + retry.getTotalTime());
+    }
+    /**
+     * Merge result of partial rerun into the full result.
+     * Outcomes of rerun tests replace the old ones. For coverage the entry
+     * with more covered lines wins, because the rerun executes only part of
+     * the tests.
+     * @param result full result.
+     * @param rerun partial rerun result.
+     * @param selection tests of the rerun.
+     * @return merged result.
+     */
+    public static RunTestsResult rerun(final RunTestsResult result,
+            final RunTestsResult rerun, final TestSelection selection) {
+        Set<String> replaced = new HashSet<>();
+        for (RunTestSuccess rts : rerun.getSuccesses()) {
+            replaced.add(key(rts.getName(), rts.getMethodName()));
+        }
+        for (RunTestFailure rtf : rerun.getFailures()) {
+            replaced.add(key(rtf.getName(), rtf.getMethodName()));
+        }
+        List<RunTestSuccess> successes = new ArrayList<>();
+        for (RunTestSuccess rts : result.getSuccesses()) {
+            if (!isReplaced(rts.getName(), rts.getMethodName(), replaced,
+                    selection)) {
+                successes.add(rts);
+            }
+        }
+        for (RunTestSuccess rts : rerun.getSuccesses()) {
+            successes.add(rts);
+        }
+        List<RunTestFailure> failures = new ArrayList<>();
+        for (RunTestFailure rtf : result.getFailures()) {
+            if (!isReplaced(rtf.getName(), rtf.getMethodName(), replaced,
+                    selection)) {
+                failures.add(rtf);
+            }
+        }
+        for (RunTestFailure rtf : rerun.getFailures()) {
+            failures.add(rtf);
+        }
+        Map<String, CodeCoverageResult> coverage = new LinkedHashMap<>();
+        for (CodeCoverageResult ccr : coverage(result)) {
+            coverage.put(ccr.getName(), ccr);
+        }
+        for (CodeCoverageResult ccr : coverage(rerun)) {
+            CodeCoverageResult old = coverage.get(ccr.getName());
+            if (old == null || covered(ccr) >= covered(old)) {
+                coverage.put(ccr.getName(), ccr);
+            }
+        }
+        return create(coverage.values().toArray(new CodeCoverageResult[0]),
+                successes, failures, successes.size() + failures.size(),
+                rerun.getTotalTime());
+    }
+    /**
+     * Merge results of two batches of different tests.
+     * Coverage of a class is combined: a line is not covered only if it is
+     * not covered in both batches. If line numbers are not available the
+     * entry with more covered lines wins.
+     * @param result result of previous batches.
+     * @param batch result of the next batch.
+     * @return merged result.
+     */
+    public static RunTestsResult append(final RunTestsResult result,
+            final RunTestsResult batch) {
+        List<RunTestSuccess> successes = new ArrayList<>();
+        Collections.addAll(successes, result.getSuccesses());
+        Collections.addAll(successes, batch.getSuccesses());
+        List<RunTestFailure> failures = new ArrayList<>();
+        Collections.addAll(failures, result.getFailures());
+        Collections.addAll(failures, batch.getFailures());
+        Map<String, CodeCoverageResult> coverage = new LinkedHashMap<>();
+        for (CodeCoverageResult ccr : coverage(result)) {
+            coverage.put(ccr.getName(), ccr);
+        }
+        for (CodeCoverageResult ccr : coverage(batch)) {
+            CodeCoverageResult old = coverage.get(ccr.getName());
+            coverage.put(ccr.getName(), old == null ? ccr
+                    : combine(old, ccr));
+        }
+        return create(coverage.values().toArray(new CodeCoverageResult[0]),
+                successes, failures,
+                result.getNumTestsRun() + batch.getNumTestsRun(),
+                result.getTotalTime() + batch.getTotalTime());
+    }
+    /**
+     * Take coverage and passed tests of the result.
+     * @param result test result.
+     * @return result without failures.
+     */
+    public static RunTestsResult passed(final RunTestsResult result) {
+        List<RunTestSuccess> successes = new ArrayList<>();
+        Collections.addAll(successes, result.getSuccesses());
+        return create(result.getCodeCoverage(), successes,
+                Collections.emptyList(), successes.size(),
+                result.getTotalTime());
+    }
+    /**
+     * Take failed tests of the result, the part which retry needs.
+     * @param result test result.
+     * @return result with failures only.
+     */
+    public static RunTestsResult failed(final RunTestsResult result) {
+        List<RunTestFailure> failures = new ArrayList<>();
+        Collections.addAll(failures, result.getFailures());
+        return create(new CodeCoverageResult[0], Collections.emptyList(),
+                failures, result.getNumTestsRun(), result.getTotalTime());
+    }
+    /**
+     * Combine coverage of one class from two runs.
+     * @param a first coverage.
+     * @param b second coverage.
+     * @return combined coverage.
+     */
+    private static CodeCoverageResult combine(final CodeCoverageResult a,
+            final CodeCoverageResult b) {
+        CodeLocation[] la = a.getLocationsNotCovered();
+        CodeLocation[] lb = b.getLocationsNotCovered();
+        if (la == null || lb == null
+                || la.length != a.getNumLocationsNotCovered()
+                || lb.length != b.getNumLocationsNotCovered()) {
+            return covered(a) >= covered(b) ? a : b;
+        }
+        Set<Integer> notCoveredB = new HashSet<>();
+        for (CodeLocation cl : lb) {
+            notCoveredB.add(cl.getLine());
+        }
+        List<CodeLocation> notCovered = new ArrayList<>();
+        for (CodeLocation cl : la) {
+            if (notCoveredB.contains(cl.getLine())) {
+                notCovered.add(cl);
+            }
+        }
+        CodeCoverageResult merged = new CodeCoverageResult();
+        merged.setId(a.getId());
+        merged.setName(a.getName());
+        merged.setNamespace(a.getNamespace());
+        merged.setType(a.getType());
+        merged.setNumLocations(Math.max(a.getNumLocations(),
+                b.getNumLocations()));
+        merged.setLocationsNotCovered(notCovered.toArray(
+                new CodeLocation[0]));
+        merged.setNumLocationsNotCovered(notCovered.size());
+        return merged;
+    }
+    /**
+     * Check that old outcome is replaced by the rerun.
+     * @param className class name.
+     * @param methodName method name.
+     * @param replaced rerun methods.
+     * @param selection rerun selection.
+     * @return true if replaced.
+     */
+    private static boolean isReplaced(final String className,
+            final String methodName, final Set<String> replaced,
+            final TestSelection selection) {
+        if (replaced.contains(key(className, methodName))) {
+            return true;
+        }
+        Set<String> methods = selection.getMethods(className);
+        return methods != null && methods.isEmpty();
+    }
+    /**
+     * @param result test result.
+     * @return coverage, empty if coverage is skipped.
+     */
+    private static CodeCoverageResult[] coverage(
+            final RunTestsResult result) {
+        return result.getCodeCoverage() == null
+                ? new CodeCoverageResult[0] : result.getCodeCoverage();
+    }
+    /**
+     * @param ccr coverage result.
+     * @return covered lines.
+     */
+    private static int covered(final CodeCoverageResult ccr) {
+        return ccr.getNumLocations() - ccr.getNumLocationsNotCovered();
+    }
+    /**
+     * @param className class name.
+     * @param methodName method name.
+     * @return unique test method key.
+     */
+    private static String key(final String className,
+            final String methodName) {
+        return className + "." + methodName;
+    }
+    /**
+     * Create result.
+     * @param coverage coverage.
+     * @param successes successful tests.
+     * @param failures failed tests.
+     * @param testsRun number of tests run.
+     * @param totalTime total time.
+     * @return result.
+     */
+    private static RunTestsResult create(final CodeCoverageResult[] coverage,
+            final List<RunTestSuccess> successes,
+            final List<RunTestFailure> failures, final int testsRun,
+            final double totalTime) {
+        RunTestsResult merged = new RunTestsResult();
+        merged.setCodeCoverage(coverage);
+        merged.setSuccesses(successes.toArray(new RunTestSuccess[0]));
+        merged.setFailures(failures.toArray(new RunTestFailure[0]));
+        merged.setNumFailures(failures.size());
+        merged.setNumTestsRun(testsRun);
+        merged.setTotalTime(totalTime);
+        return merged;
+    }
+}
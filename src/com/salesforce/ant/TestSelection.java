@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.sforce.soap.apex.RunTestsRequest;
+import com.sforce.soap.apex.TestsNode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests selected for run: test classes with optional list of methods.
+ * Class without methods means 'run all methods of the class'.
+ * @author ss
+ */
+public class TestSelection {
+    /** Selected methods by class name, in the order of adding. */
+    private final Map<String, Set<String>> tests = new LinkedHashMap<>();
+    /**
+     * Select whole class.
+     * @param className class name.
+     */
+    public void addClass(final String className) {
+        Set<String> methods = tests.get(className);
+        if (methods == null) {
+            tests.put(className, new LinkedHashSet<>());
+        } else {
+            methods.clear();
+        }
+    }
+    /**
+     * Select one method of the class.
+     * If the whole class is already selected nothing changes.
+     * @param className class name.
+     * @param methodName method name.
+     */
+    public void addMethod(final String className, final String methodName) {
+        Set<String> methods = tests.get(className);
+        if (methods == null) {
+            methods = new LinkedHashSet<>();
+            methods.add(methodName);
+            tests.put(className, methods);
+        } else if (!methods.isEmpty()) {
+            methods.add(methodName);
+        }
+    }
+    /**
+     * Add other selection.
+     * @param other other selection.
+     */
+    public void addAll(final TestSelection other) {
+        other.tests.forEach((clazz, methods) -> {
+            if (methods.isEmpty()) {
+                addClass(clazz);
+            } else {
+                methods.forEach((m) -> addMethod(clazz, m));
+            }
+        });
+    }
+    /**
+     * Remove class from selection.
+     * @param className class name.
+     */
+    public void removeClass(final String className) {
+        tests.remove(className);
+    }
+    /**
+     * Remove classes from selection.
+     * @param classNames class names.
+     */
+    public void removeClasses(final Collection<String> classNames) {
+        tests.keySet().removeAll(classNames);
+    }
+    /**
+     * @param className class name.
+     * @return true if class (or some of its methods) is selected.
+     */
+    public boolean contains(final String className) {
+        return tests.containsKey(className);
+    }
+    /**
+     * @return selected classes in selection order.
+     */
+    public Set<String> getClasses() {
+        return tests.keySet();
+    }
+    /**
+     * @param className class name.
+     * @return selected methods, empty set means all methods.
+     */
+    public Set<String> getMethods(final String className) {
+        return tests.get(className);
+    }
+    /**
+     * @return number of selected classes.
+     */
+    public int size() {
+        return tests.size();
+    }
+    /**
+     * @return true if nothing selected.
+     */
+    public boolean isEmpty() {
+        return tests.isEmpty();
+    }
+    /**
+     * @return true if some class is restricted to methods.
+     */
+    public boolean hasMethods() {
+        return tests.values().stream().anyMatch((m) -> !m.isEmpty());
+    }
+    /**
+     * Selection of one class.
+     * @param className class name.
+     * @return selection with the class and its methods, empty if the class
+     * is not selected.
+     */
+    public TestSelection select(final String className) {
+        TestSelection result = new TestSelection();
+        Set<String> methods = tests.get(className);
+        if (methods != null) {
+            result.tests.put(className, new LinkedHashSet<>(methods));
+        }
+        return result;
+    }
+    /**
+     * Split selection into parts with a limited number of classes.
+     * @param size max classes in one part.
+     * @return parts in selection order.
+     */
+    public List<TestSelection> split(final int size) {
+        List<TestSelection> parts = new ArrayList<>();
+        TestSelection part = null;
+        for (Map.Entry<String, Set<String>> e : tests.entrySet()) {
+            if (part == null || part.size() >= size) {
+                part = new TestSelection();
+                parts.add(part);
+            }
+            part.tests.put(e.getKey(), new LinkedHashSet<>(e.getValue()));
+        }
+        return parts;
+    }
+    /**
+     * Fill request with selected tests.
+     * Class names are used when there are no method restrictions,
+     * otherwise every class is sent as a tests node.
+     * @param request run tests request.
+     */
+    public void fill(final RunTestsRequest request) {
+        if (!hasMethods()) {
+            request.setClasses(tests.keySet().toArray(new String[0]));
+            return;
+        }
+        List<TestsNode> nodes = new ArrayList<>();
+        tests.forEach((clazz, methods) -> {
+            TestsNode node = new TestsNode();
+            node.setClassName(clazz);
+            if (!methods.isEmpty()) {
+                node.setTestMethods(methods.toArray(new String[0]));
+            }
+            nodes.add(node);
+        });
+        request.setTests(nodes.toArray(new TestsNode[0]));
+    }
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        tests.forEach((clazz, methods) -> {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(clazz);
+            if (!methods.isEmpty()) {
+                sb.append(methods);
+            }
+        });
+        return sb.toString();
+    }
+}
@@ -23,60 +23,670 @@
  */
 package com.salesforce.ant;
 
+import com.salesforce.report.BaselineDiff;
+import com.salesforce.report.CoverageElement;
+import com.salesforce.report.CoverageLevel;
+import com.salesforce.report.FailureElement;
 import com.salesforce.report.HTMLCoverageReport;
+import com.salesforce.report.JSONReport;
+import com.salesforce.report.JUnitXMLReport;
+import com.salesforce.report.ReportBuilder;
+import com.salesforce.report.ReportCollector;
+import com.salesforce.report.ReportSink;
+import com.salesforce.report.ReportWriter;
+import com.salesforce.report.TestElement;
 import com.salesforce.report.XMLCoverageReport;
 import com.salesforce.report.XMLCoverageReportProducer;
-import com.sforce.soap.apex.CodeCoverageResult;
 import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
 import com.sforce.soap.apex.RunTestsRequest;
 import com.sforce.soap.apex.RunTestsResult;
 import com.sforce.soap.apex.SoapConnection;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.LogLevel;
 
 /**
  * Test apex classes.
+ * <p>
+ * All run state belongs to the task instance, so several instances can run
+ * at the same time in one JVM, for example inside Ant 'parallel'. Every
+ * instance must have its own 'reportDir': reports, history, coverage index
+ * and the discovery cache are kept there.
  * @author ss
  */
 public class TestTask extends SFDCAntTask {
-    /** Report folder name. */
+    /** Default report folder name. */
     public static final String REPORT_FOLDER_NAME = "coverage-report";
     /** Project src directory. */
     private File srcDir;
+    /** Report folder. */
+    private File reportDir = new File(REPORT_FOLDER_NAME);
     /** Coverage percent limit per class. */
     private Integer coveragePercentLimit;
     /** Test classes. */
     private List<RunTest> runTests = new ArrayList<>();
+    /** Comma separated report formats: xml, html, junit, json. */
+    private String formats = "xml,html";
+    /** Third-party report sinks. */
+    private final List<Sink> sinks = new ArrayList<>();
+    /** Find test classes in the project automatically. */
+    private boolean autoDiscover;
+    /** How many times failed test methods are run again. */
+    private int retryFailed;
+    /** Keep running and re-run affected tests on source changes. */
+    private boolean watch;
+    /** Watch mode: changes within this interval (ms) are run together. */
+    private long watchDebounce = 500;
+    /** JSON Lines event log file, not written if not set. */
+    private File eventLog;
+    /**
+     * Most detailed level of task messages which are formatted, all by
+     * default, so the Ant logger filters them.
+     */
+    private int logLevel = Project.MSG_DEBUG;
+    /** Event log writer. */
+    private volatile RunEventLog events;
+    /** Parse the server response as a stream instead of API objects. */
+    private boolean streamResponse;
+    /** Endpoint for streaming requests, session endpoint if not set. */
+    private String streamEndpoint;
+    /** Coverage collection level. */
+    private CoverageLevel coverage = CoverageLevel.SUMMARY;
+    /** Run likely failing and cheap tests first. */
+    private boolean prioritize;
+    /** Max test classes in one request, all at once if not set. */
+    private int batchSize;
+    /** Max batches run at once, the actual number adapts to the org. */
+    private int maxConcurrency = 1;
+    /** Report of a previous run to compare with. */
+    private File baseline;
+    /** Loaded baseline report. */
+    private XMLCoverageReport baselineReport;
+    /** Test history file. */
+    private File historyFile;
+    /** Test history. */
+    private TestHistory history;
+    /** Record which tests cover which classes. */
+    private boolean coverageIndex;
+    /** Coverage index, loaded on the first batch. */
+    private CoverageIndex index;
+    /** Dependency graph of classes and triggers. */
+    private DependencyGraph graph;
+    /** Time budget in seconds, all tests run if not set. */
+    private int timeBudget;
+    /** Comma separated changed classes for time budget mode. */
+    private String changedClasses;
+    /**
+     * Heap for report elements in MB, spilled to disk above it. Watch mode
+     * keeps the whole result for reruns, so there it bounds the report only.
+     */
+    private int memoryBudget;
+    /** Report builder fed by batches as they complete, null if not used. */
+    private ReportBuilder batchBuilder;
+    /** Start time of the run until it is recorded in the history. */
+    private long runStartTime;
+    /** Login started with the task. */
+    private CompletableFuture<Void> login;
+    /** Project classes scan started with the task, used by the first report. */
+    private CompletableFuture<Set<String>> projectClasses;
+    /** Apex connection, opened once per task. */
+    private SoapConnection connection;
     @Override
     public void execute() throws BuildException {
         log("======================= RUN TESTS ==============================");
         validateAttributes();
         log("src directory [" + getSrcDir().getAbsolutePath() + "]");
+        log("report directory [" + reportDir.getAbsolutePath() + "]");
         log("test classes found [" + runTests.size() + "]");
         if (coveragePercentLimit == null) {
             log("coverage limit not set, default value 75%");
             coveragePercentLimit = 75;
         }
-        List<String> testCase = new ArrayList<>();
+        if (streamResponse && (watch || retryFailed > 0)) {
+            throw new BuildException("'streamResponse' can't be used with"
+                    + " 'watch' or 'retryFailed'");
+        }
+        if (baseline != null) {
+            // read before the report of this run overwrites it
+            try {
+                baselineReport = BaselineDiff.load(baseline);
+            } catch (IOException e) {
+                log("read baseline report [" + baseline + "] fail, no diff: "
+                        + e.getMessage(), Project.MSG_WARN);
+            }
+        }
+        runStartTime = System.currentTimeMillis();
+        // own threads: the common pool runs parallel scans of sources
+        ExecutorService bootstrap = Executors.newFixedThreadPool(3);
+        try {
+            startBootstrap(bootstrap);
+            resolveAndRun();
+        } finally {
+            bootstrap.shutdown();
+        }
+    }
+    /**
+     * Resolve tests, run them and create reports.
+     * @throws BuildException error or failed tests.
+     */
+    private void resolveAndRun() throws BuildException {
+        TestSelection testCase = resolveTestCase();
+        if (timeBudget > 0) {
+            testCase = selectWithinBudget(testCase);
+            if (testCase.isEmpty()) {
+                log("no tests selected within the time budget");
+                return;
+            }
+        }
+        log("run [" + testCase.size() + "] tests");
+        await(login);
+        if (eventLog != null) {
+            events = new RunEventLog(eventLog);
+        }
+        try {
+            event(RunEventLog.RUN_STARTED, "tests", testCase.size());
+            XMLCoverageReport report;
+            RunTestsResult testResult = null;
+            if (streamResponse) {
+                report = runTestsStreaming(testCase);
+            } else if (memoryBudget > 0 && !watch) {
+                report = runTestsBounded(testCase);
+            } else {
+                testResult = runTests(testCase);
+                report = createReports(testResult);
+            }
+            event(RunEventLog.RUN_FINISHED, "failures", report.getFail(),
+                    "successes", report.getSuccess());
+            getHistory().save();
+            saveCoverageIndex();
+            if (watch) {
+                try {
+                    defineTaskState(report);
+                } catch (BuildException e) {
+                    log(e.getMessage(), Project.MSG_ERR);
+                }
+                new TestWatcher(this, testCase, watchDebounce)
+                        .watch(testResult);
+            } else {
+                defineTaskState(report);
+            }
+        } finally {
+            closeEventLog();
+        }
+    }
+    /**
+     * Start login, project classes scan and report setup in background, so
+     * they overlap with resolution of the tests.
+     * @param executor bootstrap executor.
+     */
+    private void startBootstrap(final ExecutorService executor) {
+        login = CompletableFuture.runAsync(this::openConnection, executor);
+        projectClasses = CompletableFuture.supplyAsync(
+                this::scanProjectClassesAndTriggers, executor);
+        CompletableFuture.runAsync(() -> {
+            try {
+                XMLCoverageReportProducer.getJAXBContext();
+            } catch (Exception e) {
+                // reported again when the report is written
+                log("JAXB warm up fail: " + e, Project.MSG_VERBOSE);
+            }
+        }, executor);
+    }
+    /**
+     * Wait for background step.
+     * @param <T> result type.
+     * @param future background step, may be null.
+     * @return result or null.
+     * @throws BuildException error of the step.
+     */
+    private static <T> T await(final CompletableFuture<T> future)
+            throws BuildException {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof BuildException) {
+                throw (BuildException) e.getCause();
+            }
+            throw new BuildException("startup fail!", e.getCause());
+        }
+    }
+    /**
+     * Check that messages of the level are logged.
+     * Use it before formatting of verbose and debug messages.
+     * @param level message level.
+     * @return true if enabled.
+     */
+    public boolean isLogEnabled(final int level) {
+        return level <= logLevel;
+    }
+    /**
+     * Add event to the event log, if it's enabled.
+     * @param type event type.
+     * @param fields field names and values.
+     */
+    public void event(final String type, final Object... fields) {
+        RunEventLog log = events;
+        if (log != null && !log.event(type, fields)) {
+            // the write error is logged once, later events are not kept
+            closeEventLog();
+        }
+    }
+    /**
+     * Close event log.
+     */
+    private synchronized void closeEventLog() {
+        if (events != null) {
+            try {
+                events.close();
+            } catch (IOException e) {
+                log("event log write fail: " + e.getMessage(),
+                        Project.MSG_WARN);
+            }
+            events = null;
+        }
+    }
+    /**
+     * Run tests and retry failed methods.
+     * @param testCase tests.
+     * @return test result.
+     * @throws BuildException error.
+     */
+    RunTestsResult runTests(final TestSelection testCase)
+            throws BuildException {
+        RunTestsResult testResult = null;
+        List<TestSelection> batches = batches(testCase);
+        if (maxConcurrency > 1 && batches.size() > 1) {
+            openConnection();
+            testResult = new ParallelBatchRunner(this, maxConcurrency)
+                    .run(batches);
+        } else {
+            for (TestSelection batch : batches) {
+                RunTestsResult batchResult = makeRequest(batch);
+                logFailures(batchResult);
+                recordCoverage(batch, batchResult);
+                testResult = collect(testResult, batchResult);
+            }
+        }
+        for (int i = 0; i < retryFailed
+                && testResult.getFailures().length > 0; i++) {
+            testResult = retry(testResult);
+        }
+        return testResult;
+    }
+    /**
+     * Add batch result to results so far. If batches feed the report
+     * builder only failures are kept, retry needs them.
+     * @param merged results so far, null for the first batch.
+     * @param batch batch result.
+     * @return merged result.
+     */
+    RunTestsResult collect(final RunTestsResult merged,
+            final RunTestsResult batch) {
+        RunTestsResult kept = batch;
+        if (batchBuilder != null) {
+            batchBuilder.add(TestResultMerger.passed(batch));
+            kept = TestResultMerger.failed(batch);
+        }
+        return merged == null ? kept : TestResultMerger.append(merged, kept);
+    }
+    /**
+     * Run tests feeding the report builder as batches complete, so the
+     * memory budget bounds the heap of the whole run.
+     * @param testCase tests.
+     * @return XML report.
+     * @throws BuildException error.
+     */
+    private XMLCoverageReport runTestsBounded(final TestSelection testCase)
+            throws BuildException {
+        ReportBuilder builder = new ReportBuilder(
+                getProjectClassesAndTriggers(), coverage,
+                memoryBudget * 1024L * 1024L);
+        batchBuilder = builder;
+        try {
+            // failures left after retries and methods passed on retry
+            builder.add(runTests(testCase));
+        } catch (RuntimeException e) {
+            builder.close();
+            throw e;
+        } finally {
+            batchBuilder = null;
+        }
+        return createReports(builder);
+    }
+    /**
+     * Split tests into batches, in priority order if prioritization is on.
+     * @param testCase tests.
+     * @return batches, one batch if batch size is not set.
+     */
+    private List<TestSelection> batches(final TestSelection testCase) {
+        TestSelection ordered = testCase;
+        if (prioritize) {
+            ordered = new TestPrioritizer(getHistory(), srcDir)
+                    .prioritize(testCase);
+            if (isLogEnabled(Project.MSG_VERBOSE)) {
+                log("tests prioritized [" + ordered + "]",
+                        Project.MSG_VERBOSE);
+            }
+        }
+        if (batchSize <= 0 || ordered.size() <= batchSize) {
+            return Collections.singletonList(ordered);
+        }
+        List<TestSelection> batches = ordered.split(batchSize);
+        log("run tests in [" + batches.size() + "] batches");
+        return batches;
+    }
+    /**
+     * Add coverage of a batch to the coverage index if it is enabled.
+     * @param batch batch tests.
+     * @param result batch result.
+     * @throws BuildException error.
+     */
+    void recordCoverage(final TestSelection batch,
+            final RunTestsResult result) throws BuildException {
+        if (!coverageIndex || coverage == CoverageLevel.NONE) {
+            return;
+        }
+        getCoverageIndex().add(batch, result);
+    }
+    /**
+     * Drop deleted classes and tests from the coverage index if it is
+     * enabled.
+     * @param deleted deleted class, trigger and test class names.
+     * @throws BuildException error.
+     */
+    void forgetCoverage(final Collection<String> deleted)
+            throws BuildException {
+        if (coverageIndex) {
+            getCoverageIndex().remove(deleted);
+        }
+    }
+    /**
+     * Save coverage index if it was used.
+     * @throws BuildException error.
+     */
+    void saveCoverageIndex() throws BuildException {
+        if (index != null) {
+            index.save();
+        }
+    }
+    /**
+     * Load coverage index.
+     * @return coverage index.
+     * @throws BuildException error.
+     */
+    CoverageIndex getCoverageIndex() throws BuildException {
+        if (index == null) {
+            index = CoverageIndex.load(new File(reportDir,
+                    CoverageIndex.FILE_NAME));
+        }
+        return index;
+    }
+    /**
+     * Build dependency graph, sources parsed since the last build are
+     * taken from the cache.
+     * @return dependency graph.
+     * @throws BuildException error.
+     */
+    DependencyGraph getDependencyGraph() throws BuildException {
+        if (graph == null) {
+            graph = new DependencyGraph(this, new File(reportDir,
+                    DependencyGraph.CACHE_FILE_NAME));
+            graph.update();
+        }
+        return graph;
+    }
+    /**
+     * Select tests which fit into the time budget.
+     * @param testCase all tests.
+     * @return selected tests.
+     * @throws BuildException error.
+     */
+    private TestSelection selectWithinBudget(final TestSelection testCase)
+            throws BuildException {
+        if (getHistory().isEmpty()) {
+            log("no test history, durations are unknown and time budget is"
+                    + " ignored; all tests run", Project.MSG_WARN);
+            return testCase;
+        }
+        if (getCoverageIndex().isEmpty()) {
+            log("no coverage index, selection uses the dependency graph;"
+                    + " run with coverageIndex=\"true\" for recorded"
+                    + " coverage", Project.MSG_VERBOSE);
+        }
+        BudgetSelector selector = new BudgetSelector(getHistory(),
+                getCoverageIndex(), getDependencyGraph(), srcDir);
+        Set<String> changed = new HashSet<>();
+        if (changedClasses != null) {
+            for (String c : changedClasses.split(",")) {
+                if (!c.trim().isEmpty()) {
+                    changed.add(c.trim());
+                }
+            }
+        } else {
+            changed = selector.findChanged();
+        }
+        log("changed classes [" + changed.size() + "]");
+        TestSelection selected = selector.select(testCase, changed,
+                timeBudget * 1000L);
+        log("time budget [" + timeBudget + "s]: selected ["
+                + selected.size() + "] of [" + testCase.size()
+                + "] test classes, estimated ["
+                + String.format("%.1f", selector.getEstimated() / 1000d)
+                + "s]");
+        selector.getSkipped().forEach((clazz, lines) ->
+                log("[SKIPPED COVERAGE] " + clazz + " (" + lines
+                        + " lines)", Project.MSG_WARN));
+        return selected;
+    }
+    /**
+     * Log failures of a batch as soon as it is done.
+     * @param result batch result.
+     */
+    void logFailures(final RunTestsResult result) {
+        for (RunTestFailure rtf : result.getFailures()) {
+            log("[FAIL] " + rtf.getName() + "." + rtf.getMethodName()
+                    + ": " + rtf.getMessage(), Project.MSG_WARN);
+        }
+    }
+    /**
+     * @return test history, loaded once.
+     * @throws BuildException error.
+     */
+    TestHistory getHistory() throws BuildException {
+        if (history == null) {
+            history = TestHistory.load(historyFile != null ? historyFile
+                    : new File(reportDir, TestHistory.FILE_NAME), this);
+        }
+        return history;
+    }
+    /**
+     * Create XML and HTML reports.
+     * @param testResult test result.
+     * @return XML report.
+     * @throws BuildException error.
+     */
+    XMLCoverageReport createReports(final RunTestsResult testResult)
+            throws BuildException {
+        ReportBuilder builder = new ReportBuilder(
+                getProjectClassesAndTriggers(), coverage,
+                memoryBudget * 1024L * 1024L);
+        builder.add(testResult);
+        return createReports(builder);
+    }
+    /**
+     * Create XML and HTML reports.
+     * @param builder aggregated test result.
+     * @return XML report.
+     * @throws BuildException error.
+     */
+    private XMLCoverageReport createReports(final ReportBuilder builder)
+            throws BuildException {
+        try (ReportBuilder source = builder) {
+            if (source.isSpilled()) {
+                log("report elements spilled to disk, memory budget ["
+                        + memoryBudget + "MB]", Project.MSG_VERBOSE);
+            }
+            ReportWriter writer = new ReportWriter(reportDir, this);
+            ReportCollector collector = new ReportCollector(
+                    source.isSpilled(), coveragePercentLimit);
+            writer.addSink(collector);
+            if (runStartTime > 0) {
+                writer.addSink(getHistory().recorder(runStartTime));
+                runStartTime = 0;
+            }
+            BaselineDiff diff = null;
+            if (baselineReport != null) {
+                diff = new BaselineDiff(baselineReport);
+                writer.addAnalysis(diff);
+            }
+            for (String format : formats.split(",")) {
+                writer.addSink(createSink(format.trim(), diff));
+            }
+            for (Sink sink : sinks) {
+                writer.addSink(sink.create());
+            }
+            writer.write(source);
+            if (diff != null) {
+                log("changed since baseline: classes ["
+                        + diff.getChangedClasses() + "], tests ["
+                        + diff.getChangedTests() + "]");
+            }
+            XMLCoverageReport xmlReport = collector.getReport();
+            event(RunEventLog.COVERAGE_COMPUTED,
+                    "classes", collector.getClassCount(),
+                    "lines", xmlReport.getTotalLines(),
+                    "coveredLines", xmlReport.getTotalCoverageLines(),
+                    "percent", xmlReport.getTotalPercent());
+            return xmlReport;
+        }
+    }
+    /**
+     * Create built-in report sink.
+     * @param format format name.
+     * @param diff changes since baseline, null if baseline is not set.
+     * @return report sink.
+     * @throws BuildException unknown format.
+     */
+    private ReportSink createSink(final String format,
+            final BaselineDiff diff) throws BuildException {
+        switch (format) {
+            case "xml":
+                return new XMLCoverageReportProducer();
+            case "html":
+                HTMLCoverageReport report = new HTMLCoverageReport();
+                report.setBaseline(diff);
+                return report;
+            case "junit":
+                return new JUnitXMLReport();
+            case "json":
+                return new JSONReport();
+            default:
+                throw new BuildException("unknown report format ["
+                        + format + "]");
+        }
+    }
+    /**
+     * Run tests with streaming response handling and create reports.
+     * @param testCase tests.
+     * @return XML report.
+     * @throws BuildException error.
+     */
+    private XMLCoverageReport runTestsStreaming(final TestSelection testCase)
+            throws BuildException {
+        openConnection();
+        String endpoint = streamEndpoint != null ? streamEndpoint
+                : connection.getConfig().getServiceEndpoint();
+        ReportBuilder builder = new ReportBuilder(
+                getProjectClassesAndTriggers(), coverage,
+                memoryBudget * 1024L * 1024L);
+        StreamingTestRunner runner = new StreamingTestRunner(this, endpoint,
+                connection.getConfig().getSessionId());
+        double totalTime = 0;
+        for (TestSelection batch : batches(testCase)) {
+            int success = builder.getSuccess();
+            int fail = builder.getFail();
+            double time = runner.run(batch, builder);
+            totalTime += time;
+            event(RunEventLog.SHARD_DONE, "classes", batch.size(),
+                    "successes", builder.getSuccess() - success,
+                    "failures", builder.getFail() - fail, "totalTime", time);
+        }
+        log("operation completed...");
+        log("total time [" + totalTime + "]");
+        return createReports(builder);
+    }
+    /**
+     * Resolve test classes for run.
+     * Explicit entries go first, discovered classes are appended, entries
+     * with 'test=false' exclude the class in both cases. Entries with
+     * 'methods' select only listed methods of the class.
+     * @return selected tests.
+     * @throws BuildException error.
+     */
+    private TestSelection resolveTestCase() throws BuildException {
+        TestSelection testCase = new TestSelection();
+        Set<String> excluded = new HashSet<>();
         runTests.stream().forEach((t) -> {
-            log("[" + (t.isTest() ? "+" : "x") + "] " + t.getClassName());
-            if (t.isTest()) {
-                testCase.add(t.getClassName());
+            log("[" + (t.isTest() ? "+" : "x") + "] " + t.getClassName()
+                    + (t.getMethods() == null ? "" : " " + t.getMethods()));
+            if (!t.isTest()) {
+                excluded.add(t.getClassName());
+            } else if (t.getMethods() == null) {
+                testCase.addClass(t.getClassName());
+            } else {
+                for (String m : t.getMethods().split(",")) {
+                    if (!m.trim().isEmpty()) {
+                        testCase.addMethod(t.getClassName(), m.trim());
+                    }
+                }
             }
         });
-        log("run [" + testCase.size() + "] tests");
-        RunTestsResult testResult = makeRequest(testCase);
-        XMLCoverageReportProducer reportProducer =
-                new XMLCoverageReportProducer(testResult, this);
-        XMLCoverageReport xmlReport = reportProducer.createReport();
-        HTMLCoverageReport report = new HTMLCoverageReport(xmlReport, this);
-        report.createReport();
-        defineTaskState(testResult);
+        if (autoDiscover) {
+            File cache = new File(reportDir,
+                    TestClassScanner.CACHE_FILE_NAME);
+            Set<String> discovered = new TestClassScanner(this, cache).scan();
+            log("test classes discovered [" + discovered.size() + "]");
+            discovered.stream().filter((c) -> !testCase.contains(c))
+                    .forEach(testCase::addClass);
+        }
+        testCase.removeClasses(excluded);
+        return testCase;
+    }
+    /**
+     * Run failed test methods again and merge results.
+     * @param result previous result.
+     * @return merged result.
+     * @throws BuildException error.
+     */
+    private RunTestsResult retry(final RunTestsResult result)
+            throws BuildException {
+        TestSelection failed = new TestSelection();
+        for (RunTestFailure rtf : result.getFailures()) {
+            failed.addMethod(rtf.getName(), rtf.getMethodName());
+        }
+        log("retry failed tests [" + failed + "]");
+        RunTestsResult retryResult = makeRequest(failed);
+        for (RunTestSuccess rts : retryResult.getSuccesses()) {
+            log("passed on retry [" + rts.getName() + "."
+                    + rts.getMethodName() + "]");
+        }
+        return TestResultMerger.retry(result, retryResult);
     }
     /**
      * Run tests on server and get result.
@@ -84,70 +694,109 @@ public class TestTask extends SFDCAntTask {
      * @return test result.
      * @throws BuildException error.
      */
-    private RunTestsResult makeRequest(final List<String> testCase)
+    RunTestsResult makeRequest(final TestSelection testCase)
             throws BuildException {
         RunTestsRequest request = new RunTestsRequest();
         request.setAllTests(false);
-        request.setClasses(testCase.toArray(new String[0]));
+        request.setSkipCodeCoverage(coverage == CoverageLevel.NONE);
+        testCase.fill(request);
+        if (events != null) {
+            for (String clazz : testCase.getClasses()) {
+                event(RunEventLog.TEST_STARTED, "class", clazz,
+                        "methods", testCase.getMethods(clazz).isEmpty()
+                        ? null : String.join(",",
+                                testCase.getMethods(clazz)));
+            }
+        }
         try {
             log("run tests on server, please wait...");
-            SoapConnection sc = getApexConnection();
-            RunTestsResult result = sc.runTests(request);
+            openConnection();
+            RunTestsResult result = connection.runTests(request);
             log("operation completed...");
             log("total time [" + result.getTotalTime() + "]");
+            if (events != null) {
+                for (RunTestSuccess rts : result.getSuccesses()) {
+                    event(RunEventLog.TEST_FINISHED, "class", rts.getName(),
+                            "method", rts.getMethodName(),
+                            "duration", rts.getTime(), "fail", false);
+                }
+                for (RunTestFailure rtf : result.getFailures()) {
+                    event(RunEventLog.TEST_FINISHED, "class", rtf.getName(),
+                            "method", rtf.getMethodName(),
+                            "duration", rtf.getTime(), "fail", true,
+                            "message", rtf.getMessage());
+                }
+                event(RunEventLog.SHARD_DONE, "classes", testCase.size(),
+                        "successes", result.getSuccesses().length,
+                        "failures", result.getFailures().length,
+                        "totalTime", result.getTotalTime());
+            }
             return result;
         } catch (Exception e) {
             throw new BuildException("connection problem!", e);
         }
     }
+    /**
+     * Open apex connection if it is not opened yet.
+     * Connection is shared by concurrent batches, so it must be opened before
+     * they start.
+     * @throws BuildException error.
+     */
+    private synchronized void openConnection() throws BuildException {
+        try {
+            if (connection == null) {
+                connection = getApexConnection();
+            }
+        } catch (Exception e) {
+            throw new BuildException("connection problem!", e);
+        }
+    }
     /**
      * Define task state, fail or no.
-     * @param result test execution result.
+     * @param report XML report.
      * @throws BuildException tests failed.
      */
-    private void defineTaskState(final RunTestsResult result)
+    void defineTaskState(final XMLCoverageReport report)
             throws BuildException {
         // failed one or more tests
-        RunTestFailure[] failTests = result.getFailures();
-        if (failTests.length > 0) {
+        if (report.getFail() > 0) {
             StringBuilder sb = new StringBuilder("Next tests failed:\n\n");
             int count = 1;
-            for (RunTestFailure rtf : failTests) {
+            for (TestElement te : report.getMethods()) {
+                if (!te.isIsFail()) {
+                    continue;
+                }
                 sb.append(count).append(". ");
-                sb.append(rtf.getName()).append(".")
-                        .append(rtf.getMethodName()).append(":\n");
-                sb.append("Error message: ").append(rtf.getMessage())
-                        .append("\n");
-                sb.append(rtf.getStackTrace()).append("\n\n");
+                sb.append(te.getClassName()).append(".")
+                        .append(te.getMethodName()).append(": error #")
+                        .append(te.getFailureId()).append("\n");
                 count++;
             }
+            sb.append("\nErrors:\n\n");
+            for (FailureElement failure : report.getFailures()) {
+                sb.append("#").append(failure.getId()).append(" (tests: ")
+                        .append(failure.getCount()).append(")\n");
+                sb.append("Error message: ").append(failure.getMessage())
+                        .append("\n");
+                sb.append(failure.getStackTrace()).append("\n\n");
+            }
             throw new BuildException(sb.toString());
         }
         // fail by coverage parameters.
-        CodeCoverageResult[] coverageResult = result.getCodeCoverage();
+        if (coverage == CoverageLevel.NONE) {
+            return;
+        }
         StringBuilder sb = new StringBuilder(
                 "Low coverage for next tests:\n\n");
         int count = 1;
         boolean fail = false;
-        Set<String> classes = getProjectClassesAndTriggers();
-        for (CodeCoverageResult ccr : coverageResult) {
-            if (!classes.contains(ccr.getName())) {
-                continue;
-            }
-            int coverageLines = ccr.getNumLocations()
-                    - ccr.getNumLocationsNotCovered();
-            float coveragePercent;
-            if (ccr.getNumLocations() == 0) {
-                coveragePercent = 100f;
-            } else {
-                coveragePercent = (((float) coverageLines)
-                    / ((float) ccr.getNumLocations())) * 100;
-            }
-            if (coveragePercent < coveragePercentLimit) {
+        for (CoverageElement ce : report.getClasses()) {
+            if (ce.getCoveragePercent() < coveragePercentLimit) {
                 fail = true;
-                sb.append(count).append(". ").append(ccr.getName())
+                sb.append(count).append(". ").append(ce.getClassName())
                         .append(": ");
-                sb.append(String.format("%.1f", coveragePercent)).append("%\n");
+                sb.append(String.format("%.1f", ce.getCoveragePercent()))
+                        .append("%\n");
                 count++;
             }
         }
@@ -156,17 +805,31 @@ public class TestTask extends SFDCAntTask {
         }
     }
     /**
-     * Get project classes and triggers.
+     * Get project classes and triggers. The first call takes the result of
+     * the scan started with the task, later calls scan again.
      * @return project classes and triggers names.
      */
     public Set<String> getProjectClassesAndTriggers() {
+        CompletableFuture<Set<String>> started = projectClasses;
+        projectClasses = null;
+        return started != null ? await(started)
+                : scanProjectClassesAndTriggers();
+    }
+    /**
+     * Scan src directory for classes and triggers.
+     * @return project classes and triggers names.
+     */
+    private Set<String> scanProjectClassesAndTriggers() {
         Set<String> classes = new HashSet<>();
+        boolean debug = isLogEnabled(Project.MSG_DEBUG);
         File classesDir = new File(srcDir, "classes");
         if (classesDir.exists()) {
             for (File f : classesDir.listFiles()) {
                 if (f.getName().endsWith(".cls")) {
-                    log("add class [" + f.getName() + "]",
-                            LogLevel.DEBUG.getLevel());
+                    if (debug) {
+                        log("add class [" + f.getName() + "]",
+                                LogLevel.DEBUG.getLevel());
+                    }
                     classes.add(f.getName().replace(".cls", ""));
                 }
             }
@@ -175,8 +838,10 @@ public class TestTask extends SFDCAntTask {
         if (triggersDir.exists()) {
             for (File f : triggersDir.listFiles()) {
                 if (f.getName().endsWith(".trigger")) {
-                    log("add trigger [" + f.getName() + "]",
-                            LogLevel.DEBUG.getLevel());
+                    if (debug) {
+                        log("add trigger [" + f.getName() + "]",
+                                LogLevel.DEBUG.getLevel());
+                    }
                     classes.add(f.getName().replace(".trigger", ""));
                 }
             }
@@ -198,6 +863,18 @@ public class TestTask extends SFDCAntTask {
     public void setSrcDir(File srcDir) {
         this.srcDir = srcDir;
     }
+    /**
+     * @return the reportDir
+     */
+    public File getReportDir() {
+        return reportDir;
+    }
+    /**
+     * @param reportDir the reportDir to set
+     */
+    public void setReportDir(File reportDir) {
+        this.reportDir = reportDir;
+    }
     /**
      * @return the coveragePercentLimit
      */
@@ -210,6 +887,172 @@ public class TestTask extends SFDCAntTask {
     public void setCoveragePercentLimit(Integer coveragePercentLimit) {
         this.coveragePercentLimit = coveragePercentLimit;
     }
+    /**
+     * @return the autoDiscover
+     */
+    public boolean isAutoDiscover() {
+        return autoDiscover;
+    }
+    /**
+     * @param autoDiscover the autoDiscover to set
+     */
+    public void setAutoDiscover(boolean autoDiscover) {
+        this.autoDiscover = autoDiscover;
+    }
+    /**
+     * @return the retryFailed
+     */
+    public int getRetryFailed() {
+        return retryFailed;
+    }
+    /**
+     * @param retryFailed the retryFailed to set
+     */
+    public void setRetryFailed(int retryFailed) {
+        this.retryFailed = retryFailed;
+    }
+    /**
+     * @return the watch
+     */
+    public boolean isWatch() {
+        return watch;
+    }
+    /**
+     * @param watch the watch to set
+     */
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+    /**
+     * @return the watchDebounce
+     */
+    public long getWatchDebounce() {
+        return watchDebounce;
+    }
+    /**
+     * @param watchDebounce the watchDebounce to set
+     */
+    public void setWatchDebounce(long watchDebounce) {
+        this.watchDebounce = watchDebounce;
+    }
+    /**
+     * @return the eventLog
+     */
+    public File getEventLog() {
+        return eventLog;
+    }
+    /**
+     * @param eventLog the eventLog to set
+     */
+    public void setEventLog(File eventLog) {
+        this.eventLog = eventLog;
+    }
+    /**
+     * @param logLevel most detailed level of messages to log.
+     */
+    public void setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel.getLevel();
+    }
+    /**
+     * @return the streamResponse
+     */
+    public boolean isStreamResponse() {
+        return streamResponse;
+    }
+    /**
+     * @param streamResponse the streamResponse to set
+     */
+    public void setStreamResponse(boolean streamResponse) {
+        this.streamResponse = streamResponse;
+    }
+    /**
+     * @return the streamEndpoint
+     */
+    public String getStreamEndpoint() {
+        return streamEndpoint;
+    }
+    /**
+     * @param streamEndpoint the streamEndpoint to set
+     */
+    public void setStreamEndpoint(String streamEndpoint) {
+        this.streamEndpoint = streamEndpoint;
+    }
+    /**
+     * @return the coverage level
+     */
+    public CoverageLevel getCoverage() {
+        return coverage;
+    }
+    /**
+     * @param coverage coverage level: none, summary or line.
+     */
+    public void setCoverage(String coverage) {
+        try {
+            this.coverage = CoverageLevel.parse(coverage);
+        } catch (IllegalArgumentException e) {
+            throw new BuildException(e.getMessage());
+        }
+    }
+    /**
+     * @return the prioritize
+     */
+    public boolean isPrioritize() {
+        return prioritize;
+    }
+    /**
+     * @param prioritize the prioritize to set
+     */
+    public void setPrioritize(boolean prioritize) {
+        this.prioritize = prioritize;
+    }
+    /**
+     * @return the batchSize
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+    /**
+     * @param batchSize the batchSize to set
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+    /**
+     * @return the historyFile
+     */
+    public File getHistoryFile() {
+        return historyFile;
+    }
+    /**
+     * @param historyFile the historyFile to set
+     */
+    public void setHistoryFile(File historyFile) {
+        this.historyFile = historyFile;
+    }
+    /**
+     * @return the maxConcurrency
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+    /**
+     * @param maxConcurrency the maxConcurrency to set
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+    /**
+     * @return the baseline
+     */
+    public File getBaseline() {
+        return baseline;
+    }
+    /**
+     * @param baseline the baseline to set
+     */
+    public void setBaseline(File baseline) {
+        this.baseline = baseline;
+    }
     /**
      * @return the runTest
      */
@@ -222,6 +1065,75 @@ public class TestTask extends SFDCAntTask {
     public void setRunTest(List<RunTest> runTest) {
         this.runTests = runTest;
     }
+    /**
+     * @return the coverageIndex
+     */
+    public boolean isCoverageIndex() {
+        return coverageIndex;
+    }
+    /**
+     * @param coverageIndex the coverageIndex to set
+     */
+    public void setCoverageIndex(boolean coverageIndex) {
+        this.coverageIndex = coverageIndex;
+    }
+    /**
+     * @return the timeBudget
+     */
+    public int getTimeBudget() {
+        return timeBudget;
+    }
+    /**
+     * @param timeBudget the timeBudget to set
+     */
+    public void setTimeBudget(int timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+    /**
+     * @return the changedClasses
+     */
+    public String getChangedClasses() {
+        return changedClasses;
+    }
+    /**
+     * @param changedClasses the changedClasses to set
+     */
+    public void setChangedClasses(String changedClasses) {
+        this.changedClasses = changedClasses;
+    }
+    /**
+     * @return the memoryBudget
+     */
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+    /**
+     * @param memoryBudget the memoryBudget to set
+     */
+    public void setMemoryBudget(int memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+    /**
+     * @return the formats
+     */
+    public String getFormats() {
+        return formats;
+    }
+    /**
+     * @param formats the formats to set
+     */
+    public void setFormats(String formats) {
+        this.formats = formats;
+    }
+    /**
+     * Create nested element.
+     * @return new report sink.
+     */
+    public Sink createSink() {
+        Sink sink = new Sink();
+        this.sinks.add(sink);
+        return sink;
+    }
     /**
      * Create nested element.
      * @return new test class.
@@ -241,6 +1153,8 @@ public class TestTask extends SFDCAntTask {
         private String className;
         /** Run this test or no. */
         private boolean test = true;
+        /** Comma separated test methods, all methods if not set. */
+        private String methods;
         /**
          * @return the text
          */
@@ -265,6 +1179,18 @@ public class TestTask extends SFDCAntTask {
         public void setTest(boolean test) {
             this.test = test;
         }
+        /**
+         * @return the methods
+         */
+        public String getMethods() {
+            return methods;
+        }
+        /**
+         * @param methods the methods to set
+         */
+        public void setMethods(String methods) {
+            this.methods = methods;
+        }
         /**
          * Add nested text.
          * @param text nested text.
@@ -273,4 +1199,40 @@ public class TestTask extends SFDCAntTask {
             this.className = text;
         }
     }
+// ============================================================================
+    /**
+     * Third-party report sink.
+     */
+    public class Sink {
+        /** Class implementing ReportSink. */
+        private String classname;
+        /**
+         * @return the classname
+         */
+        public String getClassname() {
+            return classname;
+        }
+        /**
+         * @param classname the classname to set
+         */
+        public void setClassname(String classname) {
+            this.classname = classname;
+        }
+        /**
+         * Create sink instance.
+         * @return report sink.
+         * @throws BuildException error.
+         */
+        ReportSink create() throws BuildException {
+            try {
+                return Class.forName(classname, true,
+                        TestTask.class.getClassLoader())
+                        .asSubclass(ReportSink.class).getDeclaredConstructor()
+                        .newInstance();
+            } catch (Exception e) {
+                throw new BuildException("create report sink ["
+                        + classname + "] fail!", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.ant;
+
+import com.sforce.soap.apex.RunTestsResult;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Watch mode: waits for changes of apex classes and triggers and re-runs
+ * affected tests using the already opened session.
+ * Source files are only watched, deploy of the changed code to the org is
+ * not a part of this task.
+ * @author ss
+ */
+public class TestWatcher {
+    /** Ant task. */
+    private final TestTask task;
+    /** All tests of the task. */
+    private final TestSelection tests;
+    /** Debounce interval in milliseconds. */
+    private final long debounce;
+    /** Dependency graph, updated on each change. */
+    private final DependencyGraph graph;
+    /**
+     * Constructor.
+     * @param task ant task.
+     * @param tests all tests of the task.
+     * @param debounce debounce interval in milliseconds.
+     */
+    public TestWatcher(final TestTask task, final TestSelection tests,
+            final long debounce) {
+        this.task = task;
+        this.tests = tests;
+        this.debounce = debounce;
+        this.graph = task.getDependencyGraph();
+    }
+    /**
+     * Watch source changes until the thread is interrupted.
+     * @param initial result of the first run.
+     * @throws BuildException error.
+     */
+    public void watch(final RunTestsResult initial) throws BuildException {
+        try (WatchService ws = FileSystems.getDefault().newWatchService()) {
+            for (String dir : new String[] {"classes", "triggers"}) {
+                File folder = new File(task.getSrcDir(), dir);
+                if (folder.exists()) {
+                    folder.toPath().register(ws,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+            RunTestsResult current = initial;
+            while (!Thread.currentThread().isInterrupted()) {
+                task.log("watching for changes, press Ctrl+C to stop...");
+                Set<String> deleted = new TreeSet<>();
+                Set<String> changed = awaitChanges(ws, deleted);
+                if (changed.isEmpty()) {
+                    continue;
+                }
+                task.log("changed " + changed);
+                if (!deleted.isEmpty()) {
+                    task.log("deleted " + deleted);
+                    task.forgetCoverage(deleted);
+                    task.saveCoverageIndex();
+                }
+                TestSelection affected = affectedTests(changed, deleted);
+                if (affected.isEmpty()) {
+                    task.log("no affected tests");
+                    continue;
+                }
+                task.log("re-run [" + affected + "]");
+                try {
+                    RunTestsResult rerun = task.runTests(affected);
+                    current = TestResultMerger.rerun(current, rerun,
+                            affected);
+                    task.saveCoverageIndex();
+                    task.defineTaskState(task.createReports(current));
+                    task.log("all tests passed");
+                } catch (BuildException e) {
+                    task.log(e.getMessage(), Project.MSG_ERR);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new BuildException("watch fail!", e);
+        }
+    }
+    /**
+     * Wait for changes, changes that come within the debounce interval are
+     * collected together.
+     * @param ws watch service.
+     * @param deleted receives names of deleted files, a part of the result.
+     * @return changed class and trigger names.
+     * @throws InterruptedException interrupted.
+     */
+    private Set<String> awaitChanges(final WatchService ws,
+            final Set<String> deleted) throws InterruptedException {
+        Set<String> changed = new TreeSet<>();
+        WatchKey key = ws.take();
+        while (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.context() instanceof Path) {
+                    String name = ((Path) event.context()).getFileName()
+                            .toString();
+                    if (name.endsWith(".cls")) {
+                        name = name.substring(0, name.length() - 4);
+                    } else if (name.endsWith(".trigger")) {
+                        name = name.substring(0, name.length() - 8);
+                    } else {
+                        continue;
+                    }
+                    changed.add(name);
+                    // the last event wins, a file can be deleted and created
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        deleted.add(name);
+                    } else {
+                        deleted.remove(name);
+                    }
+                }
+            }
+            key.reset();
+            key = ws.poll(debounce, TimeUnit.MILLISECONDS);
+        }
+        return changed;
+    }
+    /**
+     * Find tests affected by changes: changed test classes and test
+     * classes which reach changed classes in the dependency graph. Tests
+     * which reached deleted classes are taken from the graph before the
+     * update, deleted tests are not run.
+     * @param changed changed class and trigger names.
+     * @param deleted deleted class and trigger names.
+     * @return affected tests.
+     * @throws BuildException error.
+     */
+    private TestSelection affectedTests(final Set<String> changed,
+            final Set<String> deleted) throws BuildException {
+        Set<String> affected = deleted.isEmpty() ? new TreeSet<>()
+                : graph.reachingTestClasses(deleted);
+        graph.update();
+        affected.addAll(graph.reachingTestClasses(changed));
+        TestSelection selection = new TestSelection();
+        for (String clazz : tests.getClasses()) {
+            if (deleted.contains(clazz) || (!changed.contains(clazz)
+                    && !affected.contains(clazz))) {
+                continue;
+            }
+            Set<String> methods = tests.getMethods(clazz);
+            if (methods.isEmpty()) {
+                selection.addClass(clazz);
+            } else {
+                methods.forEach((m) -> selection.addMethod(clazz, m));
+            }
+        }
+        return selection;
+    }
+}
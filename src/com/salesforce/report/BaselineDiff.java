@@ -0,0 +1,347 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Changes of the report since a baseline report.
+ * Receives the report events in class and method order and walks the sorted
+ * baseline along with them (merge-join), only changed classes and tests are
+ * kept.
+ * @author ss
+ */
+public class BaselineDiff implements ReportSink {
+    /** Test is reported as slow if its duration grew by this factor. */
+    private static final double SLOWDOWN_FACTOR = 1.5d;
+    /** And by at least this number of ms. */
+    private static final double MIN_SLOWDOWN = 1000d;
+    /** Class order. */
+    private static final Comparator<CoverageElement> CLASS_ORDER =
+            Comparator.comparing(CoverageElement::getClassName);
+    /** Test order. */
+    private static final Comparator<TestElement> TEST_ORDER =
+            Comparator.comparing(TestElement::getClassName)
+                    .thenComparing(TestElement::getMethodName);
+    /** Baseline classes, sorted. */
+    private final List<CoverageElement> baseClasses;
+    /** Baseline tests, sorted. */
+    private final List<TestElement> baseTests;
+    /** Baseline total percent. */
+    private final float baseTotal;
+    /** Baseline has coverage. */
+    private final boolean baseCoverage;
+    /** Coverage changes. */
+    private final List<ClassChange> classes = new ArrayList<>();
+    /** Test changes. */
+    private final List<TestChange> tests = new ArrayList<>();
+    /** Current total percent. */
+    private float total;
+    /** Coverage of both reports is compared. */
+    private boolean compareCoverage;
+    /** Next baseline class. */
+    private int classIndex;
+    /** Next baseline test. */
+    private int testIndex;
+    /**
+     * Constructor.
+     * @param baseline baseline report.
+     */
+    public BaselineDiff(final XMLCoverageReport baseline) {
+        this.baseTotal = baseline.getTotalPercent();
+        this.baseCoverage = baseline.getTotalLines() > 0
+                || (baseline.getClasses() != null
+                && !baseline.getClasses().isEmpty());
+        this.baseClasses = sorted(baseline.getClasses(), CLASS_ORDER);
+        this.baseTests = sorted(baseline.getMethods(), TEST_ORDER);
+    }
+    /**
+     * Load baseline report.
+     * @param file coverage-report.xml of a previous run.
+     * @return report.
+     * @throws IOException missing or broken file.
+     */
+    public static XMLCoverageReport load(final File file)
+            throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("file not found");
+        }
+        try {
+            return (XMLCoverageReport) XMLCoverageReportProducer
+                    .getJAXBContext().createUnmarshaller().unmarshal(file);
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+    /**
+     * @return number of changed classes.
+     */
+    public int getChangedClasses() {
+        return classes.size();
+    }
+    /**
+     * @return number of changed tests.
+     */
+    public int getChangedTests() {
+        return tests.size();
+    }
+    @Override
+    public void start(final ReportContext context) {
+        total = context.getTotals().getTotalPercent();
+        // a report without coverage has no classes, they are not removed
+        compareCoverage = baseCoverage
+                && context.getCoverageLevel() != CoverageLevel.NONE;
+        classes.clear();
+        tests.clear();
+        classIndex = 0;
+        testIndex = 0;
+    }
+    @Override
+    public void coverage(final CoverageElement el) {
+        if (!compareCoverage) {
+            return;
+        }
+        while (classIndex < baseClasses.size() && CLASS_ORDER.compare(
+                baseClasses.get(classIndex), el) < 0) {
+            removed(baseClasses.get(classIndex++));
+        }
+        if (classIndex < baseClasses.size() && CLASS_ORDER.compare(
+                baseClasses.get(classIndex), el) == 0) {
+            CoverageElement old = baseClasses.get(classIndex++);
+            if (old.getCoverageLines() != el.getCoverageLines()
+                    || old.getTotalLines() != el.getTotalLines()) {
+                classes.add(new ClassChange(el.getClassName(),
+                        old.getCoveragePercent(), el.getCoveragePercent()));
+            }
+        } else {
+            classes.add(new ClassChange(el.getClassName(), null,
+                    el.getCoveragePercent()));
+        }
+    }
+    @Override
+    public void failure(final FailureElement failure) {
+    }
+    @Override
+    public void test(final TestElement el) {
+        while (testIndex < baseTests.size() && TEST_ORDER.compare(
+                baseTests.get(testIndex), el) < 0) {
+            removed(baseTests.get(testIndex++));
+        }
+        if (testIndex == baseTests.size() || TEST_ORDER.compare(
+                baseTests.get(testIndex), el) > 0) {
+            tests.add(new TestChange(el, el.isIsFail() ? "new, failed"
+                    : "new", null, el.getDuration()));
+            return;
+        }
+        TestElement old = baseTests.get(testIndex++);
+        String change = null;
+        if (el.isIsFail() && !old.isIsFail()) {
+            change = "failed";
+        } else if (!el.isIsFail() && old.isIsFail()) {
+            change = "fixed";
+        } else if (el.getDuration() > old.getDuration() * SLOWDOWN_FACTOR
+                && el.getDuration() - old.getDuration() >= MIN_SLOWDOWN) {
+            change = "slower";
+        }
+        if (change != null) {
+            tests.add(new TestChange(el, change, old.getDuration(),
+                    el.getDuration()));
+        }
+    }
+    @Override
+    public void end() {
+        while (compareCoverage && classIndex < baseClasses.size()) {
+            removed(baseClasses.get(classIndex++));
+        }
+        while (testIndex < baseTests.size()) {
+            removed(baseTests.get(testIndex++));
+        }
+    }
+    /**
+     * @param old baseline class missing in the current report.
+     */
+    private void removed(final CoverageElement old) {
+        classes.add(new ClassChange(old.getClassName(),
+                old.getCoveragePercent(), null));
+    }
+    /**
+     * @param old baseline test missing in the current report.
+     */
+    private void removed(final TestElement old) {
+        tests.add(new TestChange(old, "removed", old.getDuration(), null));
+    }
+    /**
+     * Represent as HTML section.
+     * @return HTML, empty if nothing changed.
+     */
+    public String toHTML() {
+        StringBuilder sb = new StringBuilder();
+        if (classes.isEmpty() && tests.isEmpty()
+                && (!compareCoverage || baseTotal == total)) {
+            return "";
+        }
+        sb.append("<table class=\"baseline-table\">");
+            sb.append("<thead>");
+                sb.append("<th>").append("Changed since baseline")
+                        .append("</th>");
+                sb.append("<th>").append("Change").append("</th>");
+                sb.append("<th>").append("Baseline").append("</th>");
+                sb.append("<th>").append("Current").append("</th>");
+            sb.append("</thead>");
+            sb.append("<tbody>");
+            if (compareCoverage) {
+                sb.append("<tr>");
+                    sb.append("<td><b>Total coverage</b></td>");
+                    sb.append(deltaCell(baseTotal, total));
+                    sb.append(valueCell(baseTotal));
+                    sb.append(valueCell(total));
+                sb.append("</tr>");
+            }
+            for (ClassChange row : classes) {
+                sb.append("<tr>");
+                    sb.append("<td>").append(row.className).append("</td>");
+                    if (row.before == null) {
+                        sb.append("<td>new</td>");
+                    } else if (row.after == null) {
+                        sb.append("<td>removed</td>");
+                    } else {
+                        sb.append(deltaCell(row.before, row.after));
+                    }
+                    sb.append(valueCell(row.before));
+                    sb.append(valueCell(row.after));
+                sb.append("</tr>");
+            }
+            for (TestChange row : tests) {
+                sb.append("<tr>");
+                    sb.append("<td>").append(row.className).append('.')
+                            .append(row.methodName).append("</td>");
+                    sb.append("<td class=\"")
+                            .append("fixed".equals(row.change) ? "success"
+                                    : "error").append("\">")
+                            .append(row.change).append("</td>");
+                    sb.append(valueCell(row.before));
+                    sb.append(valueCell(row.after));
+                sb.append("</tr>");
+            }
+            sb.append("</tbody>");
+        sb.append("</table>");
+        return sb.toString();
+    }
+    /**
+     * @param before baseline percent.
+     * @param after current percent.
+     * @return HTML cell with coverage delta.
+     */
+    private static String deltaCell(final float before, final float after) {
+        float delta = after - before;
+        return "<td class=\"" + (delta < 0 ? "coverage-low" : "coverage-high")
+                + "\">" + String.format("%+.1f", delta) + "</td>";
+    }
+    /**
+     * @param value percent or duration, may be null.
+     * @return HTML cell.
+     */
+    private static String valueCell(final Object value) {
+        return "<td class=\"total-col\">" + (value == null ? ""
+                : String.format("%.1f", ((Number) value).doubleValue()))
+                + "</td>";
+    }
+    /**
+     * Sort elements unless already sorted.
+     * @param <T> element type.
+     * @param elements elements, may be null.
+     * @param order order.
+     * @return sorted elements.
+     */
+    private static <T> List<T> sorted(final List<T> elements,
+            final Comparator<T> order) {
+        List<T> result = elements == null ? new ArrayList<>() : elements;
+        for (int i = 1; i < result.size(); i++) {
+            if (order.compare(result.get(i - 1), result.get(i)) > 0) {
+                result = new ArrayList<>(result);
+                result.sort(order);
+                break;
+            }
+        }
+        return result;
+    }
+// ============================================================================
+    /**
+     * Coverage change of a class.
+     */
+    private static class ClassChange {
+        /** Class name. */
+        private final String className;
+        /** Baseline percent, null for a new class. */
+        private final Float before;
+        /** Current percent, null for a removed class. */
+        private final Float after;
+        /**
+         * Constructor.
+         * @param className class name.
+         * @param before baseline percent.
+         * @param after current percent.
+         */
+        ClassChange(final String className, final Float before,
+                final Float after) {
+            this.className = className;
+            this.before = before;
+            this.after = after;
+        }
+    }
+    /**
+     * Change of a test.
+     */
+    private static class TestChange {
+        /** Test class name. */
+        private final String className;
+        /** Test method name. */
+        private final String methodName;
+        /** Change. */
+        private final String change;
+        /** Baseline duration, null for a new test. */
+        private final Double before;
+        /** Current duration, null for a removed test. */
+        private final Double after;
+        /**
+         * Constructor.
+         * @param test current or baseline test.
+         * @param change change.
+         * @param before baseline duration.
+         * @param after current duration.
+         */
+        TestChange(final TestElement test, final String change,
+                final Double before, final Double after) {
+            this.className = test.getClassName();
+            this.methodName = test.getMethodName();
+            this.change = change;
+            this.before = before;
+            this.after = after;
+        }
+    }
+}
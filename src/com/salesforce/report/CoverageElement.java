@@ -24,6 +24,8 @@
 package com.salesforce.report;
 
 import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.CodeLocation;
+import java.util.Arrays;
 
 /**
  * Test coverage element.
@@ -38,6 +40,8 @@ public class CoverageElement {
     private int totalLines;
     /** Class name. */
     private String className;
+    /** Not covered line numbers, only for line coverage level. */
+    private int[] uncoveredLines;
     /**
      * Constructor for JAXB.
      */
@@ -48,16 +52,64 @@ public class CoverageElement {
      * @param ccr code coverage result.
      */
     public CoverageElement(final CodeCoverageResult ccr) {
-        this.totalLines = ccr.getNumLocations();
-        this.coverageLines = ccr.getNumLocations()
-                - ccr.getNumLocationsNotCovered();
-        if (ccr.getNumLocations() == 0) {
+        this(ccr.getName(), ccr.getNumLocations(),
+                ccr.getNumLocationsNotCovered());
+    }
+    /**
+     * Constructor.
+     * @param ccr code coverage result.
+     * @param lines keep numbers of not covered lines.
+     */
+    public CoverageElement(final CodeCoverageResult ccr, final boolean lines) {
+        this(ccr);
+        CodeLocation[] locations = ccr.getLocationsNotCovered();
+        if (lines && locations != null) {
+            uncoveredLines = new int[locations.length];
+            for (int i = 0; i < locations.length; i++) {
+                uncoveredLines[i] = locations[i].getLine();
+            }
+        }
+    }
+    /**
+     * Constructor.
+     * @param className class name.
+     * @param numLocations total lines in class.
+     * @param numLocationsNotCovered not covered lines.
+     */
+    public CoverageElement(final String className, final int numLocations,
+            final int numLocationsNotCovered) {
+        this.totalLines = numLocations;
+        this.coverageLines = numLocations - numLocationsNotCovered;
+        if (numLocations == 0) {
             coveragePercent = 100f;
         } else {
             coveragePercent = (((float) this.coverageLines)
-                    / ((float) ccr.getNumLocations())) * 100;
+                    / ((float) numLocations)) * 100;
+        }
+        this.className = className;
+    }
+    /**
+     * Combine coverage of one class from runs of different tests.
+     * A line is not covered only if it's not covered in both runs; without
+     * line numbers the element with more covered lines wins.
+     * @param a first coverage.
+     * @param b second coverage.
+     * @return combined coverage.
+     */
+    public static CoverageElement combine(final CoverageElement a,
+            final CoverageElement b) {
+        if (a.uncoveredLines == null || b.uncoveredLines == null) {
+            return a.coverageLines >= b.coverageLines ? a : b;
         }
-        this.className = ccr.getName();
+        int[] lb = b.uncoveredLines.clone();
+        Arrays.sort(lb);
+        int[] lines = Arrays.stream(a.uncoveredLines)
+                .filter((l) -> Arrays.binarySearch(lb, l) >= 0).toArray();
+        int total = Math.max(a.totalLines, b.totalLines);
+        CoverageElement combined = new CoverageElement(a.className, total,
+                lines.length);
+        combined.uncoveredLines = lines;
+        return combined;
     }
     /**
      * Represent as HTML row.
@@ -69,7 +121,12 @@ public class CoverageElement {
         String percentClass = getCoveragePercent() >= coveragePercentLimit
                 ? "coverage-high" : "coverage-low";
         sb.append("<tr>");
-        sb.append("<td>").append(className).append("</td>");
+        sb.append("<td>").append(className);
+        if (uncoveredLines != null && uncoveredLines.length > 0) {
+            sb.append("<div class=\"uncovered-lines\">not covered: ")
+                    .append(formatUncoveredLines()).append("</div>");
+        }
+        sb.append("</td>");
         /*sb.append("<td class=\"state-col\">")
                 .append(fail != null ? "&#9746;" : "&#9745;")
                 .append("</td>");*/
@@ -85,6 +142,34 @@ public class CoverageElement {
         sb.append("</tr>");
         return sb.toString();
     }
+    /**
+     * Format not covered lines as ranges, for example '3, 7-9'.
+     * @return formatted lines.
+     */
+    public String formatUncoveredLines() {
+        StringBuilder sb = new StringBuilder();
+        if (uncoveredLines == null) {
+            return "";
+        }
+        int[] lines = uncoveredLines.clone();
+        Arrays.sort(lines);
+        int i = 0;
+        while (i < lines.length) {
+            int j = i;
+            while (j + 1 < lines.length && lines[j + 1] <= lines[j] + 1) {
+                j++;
+            }
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(lines[i]);
+            if (lines[j] != lines[i]) {
+                sb.append("-").append(lines[j]);
+            }
+            i = j + 1;
+        }
+        return sb.toString();
+    }
 // ============================= SET & GET ====================================
     /**
      * @return the className
@@ -134,4 +219,16 @@ public class CoverageElement {
     public void setClassName(String className) {
         this.className = className;
     }
+    /**
+     * @return the uncoveredLines
+     */
+    public int[] getUncoveredLines() {
+        return uncoveredLines;
+    }
+    /**
+     * @param uncoveredLines the uncoveredLines to set
+     */
+    public void setUncoveredLines(int[] uncoveredLines) {
+        this.uncoveredLines = uncoveredLines;
+    }
 }
@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts elements within a memory budget.
+ * When the estimated size of buffered elements exceeds the budget they are
+ * sorted and written to a temporary file (run). Sorted order is produced by
+ * a k-way merge of the runs and the buffer, so only one element per run is
+ * kept in memory. At most {@link #FAN_IN} runs are open at once, more runs
+ * are first merged into longer ones.
+ * @param <T> element type.
+ * @author ss
+ */
+public class ExternalSorter<T> implements AutoCloseable {
+    /** Maximum number of runs merged at once. */
+    public static final int FAN_IN = 64;
+    /** Element order. */
+    private final Comparator<T> order;
+    /** Element serialization. */
+    private final Codec<T> codec;
+    /** Memory budget in bytes, not limited if 0 or less. */
+    private final long budget;
+    /** Buffered elements. */
+    private final List<T> buffer = new ArrayList<>();
+    /** Spilled runs. */
+    private final List<File> runs = new ArrayList<>();
+    /** Estimated size of buffered elements. */
+    private long size;
+    /**
+     * Constructor.
+     * @param order element order.
+     * @param codec element serialization.
+     * @param budget memory budget in bytes, not limited if 0 or less.
+     */
+    public ExternalSorter(final Comparator<T> order, final Codec<T> codec,
+            final long budget) {
+        this.order = order;
+        this.codec = codec;
+        this.budget = budget;
+    }
+    /**
+     * Add element.
+     * @param element element.
+     * @throws UncheckedIOException spill error.
+     */
+    public void add(final T element) {
+        buffer.add(element);
+        size += codec.size(element);
+        if (budget > 0 && size > budget) {
+            spill();
+        }
+    }
+    /**
+     * @return true if some elements are on disk.
+     */
+    public boolean isSpilled() {
+        return !runs.isEmpty();
+    }
+    /**
+     * Iterate in sorted order. Can be called several times, elements must
+     * not be added while iterating.
+     * @return sorted elements.
+     * @throws UncheckedIOException read error.
+     */
+    public Iterator<T> sorted() {
+        buffer.sort(order);
+        if (runs.isEmpty()) {
+            return buffer.iterator();
+        }
+        while (runs.size() >= FAN_IN) {
+            mergeRuns();
+        }
+        List<Iterator<T>> sources = new ArrayList<>();
+        for (File run : runs) {
+            sources.add(new RunIterator(run));
+        }
+        sources.add(buffer.iterator());
+        return new MergeIterator(sources);
+    }
+    /**
+     * Delete runs.
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        buffer.clear();
+        size = 0;
+    }
+    /**
+     * Write buffer to a new run.
+     */
+    private void spill() {
+        buffer.sort(order);
+        runs.add(write(buffer.iterator()));
+        buffer.clear();
+        size = 0;
+    }
+    /**
+     * Merge the first {@link #FAN_IN} runs into one run at the end.
+     */
+    private void mergeRuns() {
+        List<File> merged = new ArrayList<>(runs.subList(0, FAN_IN));
+        List<Iterator<T>> sources = new ArrayList<>();
+        for (File run : merged) {
+            sources.add(new RunIterator(run));
+        }
+        runs.add(write(new MergeIterator(sources)));
+        for (File run : merged) {
+            run.delete();
+        }
+        runs.subList(0, FAN_IN).clear();
+    }
+    /**
+     * Write sorted elements to a new run.
+     * @param elements sorted elements.
+     * @return run file.
+     */
+    private File write(final Iterator<T> elements) {
+        try {
+            File run = File.createTempFile("sf-report-", ".run");
+            run.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(
+                            run.toPath())))) {
+                while (elements.hasNext()) {
+                    codec.write(out, elements.next());
+                }
+            }
+            return run;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+// ============================================================================
+    /**
+     * Element serialization.
+     * @param <T> element type.
+     */
+    public interface Codec<T> {
+        /**
+         * @param out output.
+         * @param element element.
+         * @throws IOException error.
+         */
+        void write(DataOutput out, T element) throws IOException;
+        /**
+         * @param in input.
+         * @return element.
+         * @throws IOException error.
+         */
+        T read(DataInput in) throws IOException;
+        /**
+         * @param element element.
+         * @return estimated heap size, bytes.
+         */
+        long size(T element);
+    }
+    /**
+     * Reads one run.
+     */
+    private class RunIterator implements Iterator<T> {
+        /** Input, null when done. */
+        private DataInputStream in;
+        /** Next element. */
+        private T next;
+        /**
+         * Constructor.
+         * @param run run file.
+         */
+        RunIterator(final File run) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        Files.newInputStream(run.toPath())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            advance();
+        }
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        @Override
+        public T next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            T result = next;
+            advance();
+            return result;
+        }
+        /**
+         * Read next element, close input at the end.
+         */
+        private void advance() {
+            try {
+                next = codec.read(in);
+            } catch (EOFException e) {
+                next = null;
+                closeInput();
+            } catch (IOException e) {
+                closeInput();
+                throw new UncheckedIOException(e);
+            }
+        }
+        /**
+         * Close input.
+         */
+        private void closeInput() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // read is done.
+            }
+        }
+    }
+    /**
+     * K-way merge of sorted sources.
+     */
+    private class MergeIterator implements Iterator<T> {
+        /** Sources ordered by their next element. */
+        private final PriorityQueue<Head> heads;
+        /**
+         * Constructor.
+         * @param sources sorted sources.
+         */
+        MergeIterator(final List<Iterator<T>> sources) {
+            heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                    (a, b) -> order.compare(a.element, b.element));
+            for (Iterator<T> source : sources) {
+                if (source.hasNext()) {
+                    heads.add(new Head(source.next(), source));
+                }
+            }
+        }
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+        @Override
+        public T next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            T result = head.element;
+            if (head.source.hasNext()) {
+                head.element = head.source.next();
+                heads.add(head);
+            }
+            return result;
+        }
+    }
+    /**
+     * Next element of a source.
+     */
+    private class Head {
+        /** Element. */
+        private T element;
+        /** Source. */
+        private final Iterator<T> source;
+        /**
+         * Constructor.
+         * @param element element.
+         * @param source source.
+         */
+        Head(final T element, final Iterator<T> source) {
+            this.element = element;
+            this.source = source;
+        }
+    }
+}
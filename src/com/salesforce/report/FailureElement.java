@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+/**
+ * Distinct test failure, shared by all tests which failed with the same
+ * message and stack trace.
+ * @author ss
+ */
+public class FailureElement {
+    /** Failure id, unique within the report. */
+    private int id;
+    /** Fail message. */
+    private String message;
+    /** Stacktrace. */
+    private String stackTrace;
+    /** Number of failed tests. */
+    private int count;
+    /**
+     * Constructor for JAXB.
+     */
+    public FailureElement() {
+    }
+    /**
+     * Constructor.
+     * @param id failure id.
+     * @param message fail message.
+     * @param stackTrace stacktrace.
+     */
+    public FailureElement(final int id, final String message,
+            final String stackTrace) {
+        this.id = id;
+        this.message = message;
+        this.stackTrace = stackTrace;
+    }
+    /**
+     * Represent as HTML row.
+     * @return HTML row.
+     */
+    public String toHTMLRow() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<tr id=\"failure-").append(id).append("\">");
+        sb.append("<td class=\"col-failure-id\">#").append(id).append("</td>");
+        sb.append("<td class=\"error\">")
+                .append(message == null ? "" : message).append("<pre>")
+                .append(stackTrace == null ? "" : stackTrace)
+                .append("</pre></td>");
+        sb.append("<td class=\"col-failure-count\">").append(count)
+                .append("</td>");
+        sb.append("</tr>");
+        return sb.toString();
+    }
+// ============================= SET & GET ====================================
+    /**
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+    /**
+     * @param id the id to set
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+    /**
+     * @return the message
+     */
+    public String getMessage() {
+        return message;
+    }
+    /**
+     * @param message the message to set
+     */
+    public void setMessage(String message) {
+        this.message = message;
+    }
+    /**
+     * @return the stackTrace
+     */
+    public String getStackTrace() {
+        return stackTrace;
+    }
+    /**
+     * @param stackTrace the stackTrace to set
+     */
+    public void setStackTrace(String stackTrace) {
+        this.stackTrace = stackTrace;
+    }
+    /**
+     * @return the count
+     */
+    public int getCount() {
+        return count;
+    }
+    /**
+     * @param count the count to set
+     */
+    public void setCount(int count) {
+        this.count = count;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of distinct test failures.
+ * Failures are keyed by normalized message and stack trace, so thousands of
+ * tests broken by the same problem share one failure element.
+ * With a memory budget failures which do not fit into it share one overflow
+ * element without a stack trace.
+ * @author ss
+ */
+public class FailureTable {
+    /** Message of the overflow element. */
+    static final String OVERFLOW_MESSAGE =
+            "Other failures, not kept within the memory budget";
+    /** Failures by normalized signature. */
+    private final Map<String, FailureElement> failures = new HashMap<>();
+    /** Failures in order of appearance. */
+    private final List<FailureElement> ordered = new ArrayList<>();
+    /** Memory budget in bytes, not limited if 0 or less. */
+    private final long budget;
+    /** Estimated size of kept failures. */
+    private long size;
+    /** Shared element of failures over the budget, null until needed. */
+    private FailureElement overflow;
+    /**
+     * Constructor of unlimited table.
+     */
+    public FailureTable() {
+        this(0);
+    }
+    /**
+     * Constructor.
+     * @param budget memory budget in bytes, not limited if 0 or less.
+     */
+    public FailureTable(final long budget) {
+        this.budget = budget;
+    }
+    /**
+     * Find or add failure and count one more failed test.
+     * @param message fail message.
+     * @param stackTrace stacktrace.
+     * @return shared failure element.
+     */
+    public FailureElement intern(final String message,
+            final String stackTrace) {
+        String key = normalize(message) + '\u0000' + normalize(stackTrace);
+        FailureElement failure = failures.get(key);
+        if (failure == null) {
+            // key and both texts, 2 bytes per char
+            long bytes = 100 + 4L * key.length();
+            if (budget > 0 && size + bytes > budget) {
+                if (overflow == null) {
+                    overflow = new FailureElement(ordered.size() + 1,
+                            OVERFLOW_MESSAGE, null);
+                    ordered.add(overflow);
+                }
+                failure = overflow;
+            } else {
+                failure = new FailureElement(ordered.size() + 1,
+                        message == null ? null : message.trim(),
+                        stackTrace == null ? null : stackTrace.trim());
+                failures.put(key, failure);
+                ordered.add(failure);
+                size += bytes;
+            }
+        }
+        failure.setCount(failure.getCount() + 1);
+        return failure;
+    }
+    /**
+     * @return distinct failures in order of appearance.
+     */
+    public List<FailureElement> getFailures() {
+        return ordered;
+    }
+    /**
+     * Normalize text: trim and collapse whitespace.
+     * @param text text.
+     * @return normalized text.
+     */
+    static String normalize(final String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -23,65 +23,105 @@
  */
 package com.salesforce.report;
 
-import com.salesforce.ant.TestTask;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
-import org.apache.tools.ant.BuildException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 /**
  * Test coverage report.
+ * Rows are written to the file as the report events come, only rows of one
+ * test class are buffered.
  * @author ss
  */
-public class HTMLCoverageReport {
+public class HTMLCoverageReport implements ReportSink {
     /** CSS file name. */
     private static final String CSS_FILE_NAME = "coverage-report.css";
     /** HTML file name. */
     private static final String HTML_FILE_NAME = "coverage-report.html";
-    /** XML report. */
-    private final XMLCoverageReport xmlReport;
-    /** Ant task. */
-    private final TestTask task;
+    /** Report context. */
+    private ReportContext context;
+    /** Changes since baseline, not shown if not set. */
+    private BaselineDiff baseline;
+    /** Output. */
+    private Writer out;
+    /** Section of the open table. */
+    private String section;
+    /** Rows of the current test class. */
+    private final StringBuilder classTests = new StringBuilder();
+    /** Current test class. */
+    private String testClass;
+    /** Duration of the current test class. */
+    private double classDuration;
+    /** Current test class has failures. */
+    private boolean classFail;
     /**
-     * Constructor.
-     * @param xmlReport
-     * @param task Ant task.
+     * @param baseline changes since baseline.
      */
-    public HTMLCoverageReport(final XMLCoverageReport xmlReport,
-            final TestTask task) {
-        this.xmlReport = xmlReport;
-        this.task = task;
+    public void setBaseline(final BaselineDiff baseline) {
+        this.baseline = baseline;
     }
-    public void createReport() throws BuildException {
-        try {
-            StringBuilder sb = new StringBuilder();
-            
-            sb.append("<html>").append("<head>");
-            sb.append(createStyle());
-            sb.append("</head>").append("<body>");
-            sb.append(createClassesCoverageTable());
-            sb.append(createTestClassesTable());
-            sb.append("</body>").append("</html>");
-            File folder = new File(TestTask.REPORT_FOLDER_NAME);
-            if (!folder.exists()) {
-                folder.mkdir();
-            }
-            File reportFile = new File(folder, HTML_FILE_NAME);
-            try (FileOutputStream fos = new FileOutputStream(
-                    reportFile)) {
-                fos.write(sb.toString().getBytes("UTF-8"));
-            }
-            copyResources(new String[] {CSS_FILE_NAME}, folder);
-            task.log("report saved to [" + reportFile.getAbsolutePath() + "]");
-        } catch (Exception e) {
-            throw new BuildException("create coverage report fail!", e);
+    @Override
+    public void start(final ReportContext context) throws Exception {
+        this.context = context;
+        out = Files.newBufferedWriter(new File(context.getFolder(),
+                HTML_FILE_NAME).toPath(), StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder();
+        
+        sb.append("<html>").append("<head>");
+        sb.append(createStyle());
+        sb.append("</head>").append("<body>");
+        if (baseline != null) {
+            sb.append(baseline.toHTML());
+        }
+        sb.append(createTotalTable());
+        out.write(sb.toString());
+    }
+    @Override
+    public void coverage(final CoverageElement element) throws Exception {
+        if (context.getCoverageLevel() == CoverageLevel.NONE) {
+            return;
+        }
+        openSection("classes");
+        out.write(element.toHTMLRow(
+                context.getTask().getCoveragePercentLimit()));
+    }
+    @Override
+    public void failure(final FailureElement failure) throws Exception {
+        openSection("failures");
+        out.write(failure.toHTMLRow());
+    }
+    @Override
+    public void test(final TestElement test) throws Exception {
+        openSection("tests");
+        if (!test.getClassName().equals(testClass)) {
+            flushTestClass();
+            testClass = test.getClassName();
+        }
+        classTests.append(test.toHTMLRow());
+        classDuration += test.getDuration();
+        if (test.isIsFail()) {
+            classFail = true;
+        }
+    }
+    @Override
+    public void end() throws Exception {
+        flushTestClass();
+        openSection(null);
+        out.write("</body></html>");
+        out.flush();
+        File folder = context.getFolder();
+        copyResources(new String[] {CSS_FILE_NAME}, folder);
+        context.getTask().log("report saved to ["
+                + new File(folder, HTML_FILE_NAME).getAbsolutePath() + "]");
+    }
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
         }
     }
     private StringBuilder createStyle() throws Exception {
@@ -90,56 +130,56 @@ public class HTMLCoverageReport {
                 + CSS_FILE_NAME + "\">");
         return sb;
     }
-    private String createClassesCoverageTable() {
-        StringBuilder sb = new StringBuilder();
-        StringBuilder table = new StringBuilder();
-        table.append("<table>");
-            table.append("<thead>");
-                table.append("<th>").append("Class name").append("</th>");
-                table.append("<th>").append("Coverage lines").append("</th>");
-                table.append("<th>").append("Coverage percent").append("</th>");
-            table.append("</thead>");
-            table.append("</tbody>");
-            for (CoverageElement el : xmlReport.getClasses()) {
-                table.append(el.toHTMLRow(task.getCoveragePercentLimit()));
-            }
-            table.append("</tbody>");
-        table.append("</table>");
-        // total table
+    private String createTotalTable() {
+        XMLCoverageReport totals = context.getTotals();
         StringBuilder totalTable = new StringBuilder();
         totalTable.append("<table class=\"total-table\">");
             totalTable.append("</tbody>");
             totalTable.append("<tr>");
                 totalTable.append("<td>").append("<b>Total</b> (fail: ")
-                        .append(xmlReport.getFail())
+                        .append(totals.getFail())
                         .append(", success: ")
-                        .append(xmlReport.getSuccess())
+                        .append(totals.getSuccess())
                         .append(")").append("</td>");
-                totalTable.append("<td class=\"total-col\">")
-                        .append(xmlReport.getTotalCoverageLines()).append("/")
-                        .append(xmlReport.getTotalLines()).append("</td>");
-                totalTable.append("<td class=\"total-col\">")
-                        .append(String.format(
-                                "%.1f", xmlReport.getTotalPercent()))
-                        .append("</td>");
+                if (context.getCoverageLevel() != CoverageLevel.NONE) {
+                    totalTable.append("<td class=\"total-col\">")
+                            .append(totals.getTotalCoverageLines())
+                            .append("/").append(totals.getTotalLines())
+                            .append("</td>");
+                    totalTable.append("<td class=\"total-col\">")
+                            .append(String.format(
+                                    "%.1f", totals.getTotalPercent()))
+                            .append("</td>");
+                }
             totalTable.append("</tr>");
             totalTable.append("</tbody>");
         totalTable.append("</table>");
-        sb.append(totalTable);
-        sb.append(table);
+        return totalTable.toString();
+    }
+    private String createClassesTableStart() {
+        StringBuilder table = new StringBuilder();
+        table.append("<table>");
+            table.append("<thead>");
+                table.append("<th>").append("Class name").append("</th>");
+                table.append("<th>").append("Coverage lines").append("</th>");
+                table.append("<th>").append("Coverage percent").append("</th>");
+            table.append("</thead>");
+            table.append("</tbody>");
+        return table.toString();
+    }
+    private String createFailuresTableStart() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<table class=\"failures-table\">");
+            sb.append("<thead>");
+                sb.append("<th>").append("Failure").append("</th>");
+                sb.append("<th>").append("Error").append("</th>");
+                sb.append("<th>").append("Tests").append("</th>");
+            sb.append("</thead>");
+            sb.append("</tbody>");
         return sb.toString();
     }
-    private String createTestClassesTable() {
+    private String createTestClassesTableStart() {
         StringBuilder sb = new StringBuilder();
-        Map<String, List<TestElement>> testMap = new HashMap();
-        xmlReport.getMethods().stream().forEach((te) -> {
-            if (!testMap.containsKey(te.getClassName())) {
-                testMap.put(te.getClassName(), new ArrayList<>());
-            }
-            testMap.get(te.getClassName()).add(te);
-        });
-        Set<String> tests = testMap.keySet();
-        Set<String> sortedTests = new TreeSet<>(tests);
         sb.append("<table class=\"tests-table\">");
             sb.append("<thead>");
                 sb.append("<th>").append("Method name").append("</th>");
@@ -149,31 +189,51 @@ public class HTMLCoverageReport {
                 sb.append("<th>").append("Duration").append("</th>");
             sb.append("</thead>");
             sb.append("</tbody>");
-            for (String clazz : sortedTests) {
-                double fullDuration = 0;
-                boolean isFail = false;
-                List<TestElement> elements = testMap.get(clazz);
-                Collections.sort(elements);
-                StringBuilder rows = new StringBuilder();
-                for (TestElement el : elements) {
-                    rows.append(el.toHTMLRow());
-                    fullDuration += el.getDuration();
-                    if (el.isIsFail()) {
-                        isFail = true;
-                    }
-                }
-                sb.append("<tr>");
-                sb.append("<td colspan=\"5\" class=\"col-class-name\"><b class=\"")
-                        .append(isFail ? "error" : "success").append("\">")
-                        .append(clazz).append("</b> (duration: ")
-                        .append(fullDuration).append(")").append("</td>");
-                sb.append("</tr>");
-                sb.append(rows);
-            }
-            sb.append("</tbody>");
-        sb.append("</table>");
         return sb.toString();
     }
+    /**
+     * Close the open table and open the table of the section.
+     * @param name section name, null to close the open table only.
+     * @throws Exception error.
+     */
+    private void openSection(final String name) throws Exception {
+        if (name != null && name.equals(section)) {
+            return;
+        }
+        if (section != null) {
+            out.write("</tbody></table>");
+        }
+        section = name;
+        if ("classes".equals(name)) {
+            out.write(createClassesTableStart());
+        } else if ("failures".equals(name)) {
+            out.write(createFailuresTableStart());
+        } else if ("tests".equals(name)) {
+            out.write(createTestClassesTableStart());
+        }
+    }
+    /**
+     * Write rows of the current test class.
+     * @throws Exception error.
+     */
+    private void flushTestClass() throws Exception {
+        if (testClass == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("<tr>");
+        sb.append("<td colspan=\"5\" class=\"col-class-name\"><b class=\"")
+                .append(classFail ? "error" : "success").append("\">")
+                .append(testClass).append("</b> (duration: ")
+                .append(classDuration).append(")").append("</td>");
+        sb.append("</tr>");
+        out.write(sb.toString());
+        out.write(classTests.toString());
+        classTests.setLength(0);
+        classDuration = 0;
+        classFail = false;
+        testClass = null;
+    }
     private void copyResources(final String[] resources, final File folder)
             throws Exception {
         for (String resource : resources) {
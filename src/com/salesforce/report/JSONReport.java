@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Report in JSON format.
+ * Object with totals and 'classes', 'failures' and 'tests' arrays, an array
+ * without elements is written empty.
+ * @author ss
+ */
+public class JSONReport implements ReportSink {
+    /** JSON file name. */
+    public static final String JSON_FILE_NAME = "coverage-report.json";
+    /** Arrays in order of the report events. */
+    private static final String[] ARRAYS = {"classes", "failures", "tests"};
+    /** Line buffer. */
+    private final StringBuilder sb = new StringBuilder();
+    /** Output. */
+    private Writer out;
+    /** Index of the open array, -1 if none. */
+    private int array = -1;
+    /** Open array has elements. */
+    private boolean hasElements;
+    @Override
+    public void start(final ReportContext context) throws Exception {
+        out = Files.newBufferedWriter(new File(
+                context.getFolder(), JSON_FILE_NAME).toPath(),
+                StandardCharsets.UTF_8);
+        XMLCoverageReport totals = context.getTotals();
+        out.write("{\"success\":" + totals.getSuccess()
+                + ",\"fail\":" + totals.getFail()
+                + ",\"totalLines\":" + totals.getTotalLines()
+                + ",\"totalCoverageLines\":" + totals.getTotalCoverageLines()
+                + ",\"totalPercent\":" + totals.getTotalPercent());
+    }
+    @Override
+    public void coverage(final CoverageElement element) throws Exception {
+        sb.setLength(0);
+        sb.append("{\"className\":");
+        JSONUtil.appendString(sb, element.getClassName());
+        sb.append(",\"totalLines\":").append(element.getTotalLines())
+                .append(",\"coverageLines\":")
+                .append(element.getCoverageLines())
+                .append(",\"coveragePercent\":")
+                .append(element.getCoveragePercent());
+        if (element.getUncoveredLines() != null) {
+            sb.append(",\"uncoveredLines\":[");
+            int[] lines = element.getUncoveredLines();
+            for (int i = 0; i < lines.length; i++) {
+                sb.append(i > 0 ? "," : "").append(lines[i]);
+            }
+            sb.append(']');
+        }
+        writeElement(0, sb.append('}'));
+    }
+    @Override
+    public void failure(final FailureElement failure) throws Exception {
+        sb.setLength(0);
+        sb.append("{\"id\":").append(failure.getId())
+                .append(",\"count\":").append(failure.getCount())
+                .append(",\"message\":");
+        appendNullable(failure.getMessage());
+        sb.append(",\"stackTrace\":");
+        appendNullable(failure.getStackTrace());
+        writeElement(1, sb.append('}'));
+    }
+    @Override
+    public void test(final TestElement test) throws Exception {
+        sb.setLength(0);
+        sb.append("{\"className\":");
+        JSONUtil.appendString(sb, test.getClassName());
+        sb.append(",\"methodName\":");
+        JSONUtil.appendString(sb, test.getMethodName());
+        sb.append(",\"duration\":").append(test.getDuration())
+                .append(",\"fail\":").append(test.isIsFail())
+                .append(",\"failureId\":").append(test.getFailureId())
+                .append(",\"seeAllData\":").append(test.isSeeAllData());
+        writeElement(2, sb.append('}'));
+    }
+    @Override
+    public void end() throws Exception {
+        openArray(ARRAYS.length - 1);
+        out.write("]}\n");
+        out.flush();
+    }
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+    /**
+     * @param value string value or null.
+     */
+    private void appendNullable(final String value) {
+        if (value == null) {
+            sb.append("null");
+        } else {
+            JSONUtil.appendString(sb, value);
+        }
+    }
+    /**
+     * Write array element, open the array if needed.
+     * @param index array index.
+     * @param element element JSON.
+     * @throws IOException error.
+     */
+    private void writeElement(final int index, final CharSequence element)
+            throws IOException {
+        openArray(index);
+        if (hasElements) {
+            out.write(',');
+        }
+        out.write('\n');
+        out.append(element);
+        hasElements = true;
+    }
+    /**
+     * Close the open array and open arrays up to the index, skipped arrays
+     * stay empty.
+     * @param index array index.
+     * @throws IOException error.
+     */
+    private void openArray(final int index) throws IOException {
+        while (array < index) {
+            if (array >= 0) {
+                out.write(']');
+            }
+            array++;
+            out.write(",\"" + ARRAYS[array] + "\":[");
+            hasElements = false;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Test results in JUnit XML format for CI servers.
+ * One test suite per test class, durations in seconds.
+ * @author ss
+ */
+public class JUnitXMLReport implements ReportSink {
+    /** XML file name. */
+    public static final String XML_FILE_NAME = "junit-report.xml";
+    /** Failures by id. */
+    private final Map<Integer, FailureElement> failures = new HashMap<>();
+    /** Tests of the current class. */
+    private final List<TestElement> suite = new ArrayList<>();
+    /** File stream. */
+    private OutputStream stream;
+    /** XML writer. */
+    private XMLStreamWriter out;
+    @Override
+    public void start(final ReportContext context) throws Exception {
+        stream = new FileOutputStream(new File(context.getFolder(),
+                XML_FILE_NAME));
+        out = XMLOutputFactory.newInstance()
+                .createXMLStreamWriter(stream, "UTF-8");
+        XMLCoverageReport totals = context.getTotals();
+        out.writeStartDocument("UTF-8", "1.0");
+        out.writeStartElement("testsuites");
+        out.writeAttribute("tests", String.valueOf(totals.getFail()
+                + totals.getSuccess()));
+        out.writeAttribute("failures", String.valueOf(totals.getFail()));
+    }
+    @Override
+    public void coverage(final CoverageElement element) {
+    }
+    @Override
+    public void failure(final FailureElement failure) {
+        failures.put(failure.getId(), failure);
+    }
+    @Override
+    public void test(final TestElement test) throws Exception {
+        if (!suite.isEmpty() && !suite.get(0).getClassName()
+                .equals(test.getClassName())) {
+            writeSuite();
+        }
+        suite.add(test);
+    }
+    @Override
+    public void end() throws Exception {
+        writeSuite();
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.flush();
+    }
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+        if (stream != null) {
+            stream.close();
+        }
+    }
+    /**
+     * Write test suite of the current class.
+     * @throws Exception error.
+     */
+    private void writeSuite() throws Exception {
+        if (suite.isEmpty()) {
+            return;
+        }
+        int fail = 0;
+        double time = 0;
+        for (TestElement te : suite) {
+            fail += te.isIsFail() ? 1 : 0;
+            time += te.getDuration();
+        }
+        out.writeStartElement("testsuite");
+        out.writeAttribute("name", suite.get(0).getClassName());
+        out.writeAttribute("tests", String.valueOf(suite.size()));
+        out.writeAttribute("failures", String.valueOf(fail));
+        out.writeAttribute("time", seconds(time));
+        for (TestElement te : suite) {
+            out.writeStartElement("testcase");
+            out.writeAttribute("classname", te.getClassName());
+            out.writeAttribute("name", te.getMethodName());
+            out.writeAttribute("time", seconds(te.getDuration()));
+            FailureElement failure = failures.get(te.getFailureId());
+            if (te.isIsFail() && failure != null) {
+                out.writeStartElement("failure");
+                out.writeAttribute("message", failure.getMessage() == null
+                        ? "" : failure.getMessage());
+                out.writeCharacters(failure.getStackTrace() == null
+                        ? "" : failure.getStackTrace());
+                out.writeEndElement();
+            } else if (te.isIsFail()) {
+                out.writeEmptyElement("failure");
+            }
+            out.writeEndElement();
+        }
+        out.writeEndElement();
+        suite.clear();
+    }
+    /**
+     * @param millis duration, ms.
+     * @return duration in seconds.
+     */
+    private static String seconds(final double millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000d);
+    }
+}
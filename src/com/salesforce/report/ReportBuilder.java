@@ -0,0 +1,368 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import com.sforce.soap.apex.CodeCoverageResult;
+import com.sforce.soap.apex.RunTestFailure;
+import com.sforce.soap.apex.RunTestSuccess;
+import com.sforce.soap.apex.RunTestsResult;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Aggregates test results and coverage into the report model.
+ * Results can be added from the API result object or one by one, for
+ * example while a response is parsed. With a memory budget elements are
+ * spilled to temporary files and merged back in report order.
+ * @author ss
+ */
+public class ReportBuilder implements AutoCloseable {
+    /** Class order. */
+    private static final Comparator<CoverageElement> CLASS_ORDER =
+            Comparator.comparing(CoverageElement::getClassName);
+    /** Test order. */
+    private static final Comparator<TestElement> TEST_ORDER =
+            Comparator.comparing(TestElement::getClassName)
+                    .thenComparing(TestElement::getMethodName);
+    /** Project classes and triggers, coverage of other classes is skipped. */
+    private final Set<String> projectClasses;
+    /** Coverage level. */
+    private final CoverageLevel coverageLevel;
+    /** Coverage elements, a class can be added several times. */
+    private final ExternalSorter<CoverageElement> classes;
+    /** Test elements. */
+    private final ExternalSorter<TestElement> tests;
+    /** Distinct failures. */
+    private final FailureTable failureTable;
+    /** Number of successful tests. */
+    private int success;
+    /** Number of failed tests. */
+    private int fail;
+    /**
+     * Constructor.
+     * @param projectClasses project classes and triggers.
+     * @param coverageLevel coverage level.
+     */
+    public ReportBuilder(final Set<String> projectClasses,
+            final CoverageLevel coverageLevel) {
+        this(projectClasses, coverageLevel, 0);
+    }
+    /**
+     * Constructor.
+     * @param projectClasses project classes and triggers.
+     * @param coverageLevel coverage level.
+     * @param memoryBudget memory budget for elements in bytes, not limited
+     * if 0. A quarter of it is kept for distinct failures, the rest is
+     * shared by classes and tests.
+     */
+    public ReportBuilder(final Set<String> projectClasses,
+            final CoverageLevel coverageLevel, final long memoryBudget) {
+        this.projectClasses = projectClasses;
+        this.coverageLevel = coverageLevel;
+        long elementBudget = memoryBudget - memoryBudget / 4;
+        this.failureTable = new FailureTable(memoryBudget / 4);
+        this.classes = new ExternalSorter<>(CLASS_ORDER, new CoverageCodec(),
+                elementBudget / 2);
+        this.tests = new ExternalSorter<>(TEST_ORDER, new TestCodec(),
+                elementBudget / 2);
+    }
+    /**
+     * Add API result.
+     * @param result tests result.
+     */
+    public void add(final RunTestsResult result) {
+        if (result.getCodeCoverage() != null) {
+            for (CodeCoverageResult ccr : result.getCodeCoverage()) {
+                if (acceptsCoverage(ccr.getName())) {
+                    // lines are kept to combine entries of several batches
+                    addCoverage(new CoverageElement(ccr, true));
+                }
+            }
+        }
+        for (RunTestFailure rtf : result.getFailures()) {
+            addFailure(rtf.getName(), rtf.getMethodName(), rtf.getTime(),
+                    rtf.getSeeAllData(), rtf.getMessage(),
+                    rtf.getStackTrace());
+        }
+        for (RunTestSuccess rts : result.getSuccesses()) {
+            addSuccess(rts.getName(), rts.getMethodName(), rts.getTime(),
+                    rts.getSeeAllData());
+        }
+    }
+    /**
+     * Check class before coverage is added.
+     * @param className class name.
+     * @return true if coverage of the class is a part of the report.
+     */
+    public boolean acceptsCoverage(final String className) {
+        return coverageLevel != CoverageLevel.NONE
+                && projectClasses.contains(className);
+    }
+    /**
+     * @return coverage level.
+     */
+    public CoverageLevel getCoverageLevel() {
+        return coverageLevel;
+    }
+    /**
+     * Add class coverage.
+     * @param element coverage element.
+     */
+    public void addCoverage(final CoverageElement element) {
+        if (acceptsCoverage(element.getClassName())) {
+            classes.add(element);
+        }
+    }
+    /**
+     * Add successful test.
+     * @param className class name.
+     * @param methodName method name.
+     * @param time duration.
+     * @param seeAllData 'See all data' enabled.
+     */
+    public void addSuccess(final String className, final String methodName,
+            final double time, final boolean seeAllData) {
+        success++;
+        addTest(new TestElement(className, methodName, time, seeAllData,
+                null));
+    }
+    /**
+     * Add failed test.
+     * @param className class name.
+     * @param methodName method name.
+     * @param time duration.
+     * @param seeAllData 'See all data' enabled.
+     * @param message fail message.
+     * @param stackTrace stacktrace.
+     */
+    public void addFailure(final String className, final String methodName,
+            final double time, final boolean seeAllData,
+            final String message, final String stackTrace) {
+        fail++;
+        addTest(new TestElement(className, methodName, time, seeAllData,
+                failureTable.intern(message, stackTrace)));
+    }
+    /**
+     * @param el test element.
+     */
+    private void addTest(final TestElement el) {
+        tests.add(el);
+    }
+    /**
+     * @return number of successful tests added.
+     */
+    public int getSuccess() {
+        return success;
+    }
+    /**
+     * @return number of failed tests added.
+     */
+    public int getFail() {
+        return fail;
+    }
+    /**
+     * @return distinct failures.
+     */
+    public List<FailureElement> getFailures() {
+        return failureTable.getFailures();
+    }
+    /**
+     * @return true if some elements were spilled to disk.
+     */
+    public boolean isSpilled() {
+        return classes.isSpilled() || tests.isSpilled();
+    }
+    /**
+     * Coverage of classes in class order, entries of one class added
+     * several times are combined. Not covered lines are dropped below the
+     * line coverage level.
+     * @return coverage elements.
+     */
+    public Iterator<CoverageElement> coverage() {
+        Iterator<CoverageElement> sorted = classes.sorted();
+        return new Iterator<CoverageElement>() {
+            /** Next element of the sorted stream. */
+            private CoverageElement next = sorted.hasNext() ? sorted.next()
+                    : null;
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+            @Override
+            public CoverageElement next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                CoverageElement result = next;
+                next = null;
+                while (sorted.hasNext()) {
+                    CoverageElement el = sorted.next();
+                    if (!el.getClassName().equals(result.getClassName())) {
+                        next = el;
+                        break;
+                    }
+                    result = CoverageElement.combine(result, el);
+                }
+                if (coverageLevel != CoverageLevel.LINE
+                        && result.getUncoveredLines() != null) {
+                    result = new CoverageElement(result.getClassName(),
+                            result.getTotalLines(), result.getTotalLines()
+                                    - result.getCoverageLines());
+                }
+                return result;
+            }
+        };
+    }
+    /**
+     * @return tests in class and method order.
+     */
+    public Iterator<TestElement> tests() {
+        return tests.sorted();
+    }
+    /**
+     * Compute totals.
+     * @return report with totals only.
+     */
+    public XMLCoverageReport totals() {
+        int totalLines = 0;
+        int totalCoverageLines = 0;
+        for (Iterator<CoverageElement> it = coverage(); it.hasNext();) {
+            CoverageElement el = it.next();
+            totalLines += el.getTotalLines();
+            totalCoverageLines += el.getCoverageLines();
+        }
+        float percent = totalLines == 0 ? 100f : (((float) totalCoverageLines)
+                / ((float) totalLines)) * 100;
+        XMLCoverageReport report = new XMLCoverageReport();
+        report.setFail(fail);
+        report.setSuccess(success);
+        report.setTotalCoverageLines(totalCoverageLines);
+        report.setTotalLines(totalLines);
+        report.setTotalPercent(percent);
+        return report;
+    }
+    /**
+     * Build report.
+     * @return report.
+     */
+    public XMLCoverageReport build() {
+        XMLCoverageReport report = totals();
+        List<CoverageElement> elements = new ArrayList<>();
+        coverage().forEachRemaining(elements::add);
+        report.setClasses(elements);
+        List<TestElement> methods = new ArrayList<>();
+        tests().forEachRemaining(methods::add);
+        report.setMethods(methods);
+        report.setFailures(failureTable.getFailures());
+        return report;
+    }
+    /**
+     * Delete spilled elements.
+     */
+    @Override
+    public void close() {
+        classes.close();
+        tests.close();
+    }
+// ============================================================================
+    /**
+     * Coverage element serialization.
+     */
+    private static class CoverageCodec
+            implements ExternalSorter.Codec<CoverageElement> {
+        @Override
+        public void write(final DataOutput out, final CoverageElement el)
+                throws IOException {
+            out.writeUTF(el.getClassName());
+            out.writeInt(el.getTotalLines());
+            out.writeInt(el.getTotalLines() - el.getCoverageLines());
+            int[] lines = el.getUncoveredLines();
+            out.writeInt(lines == null ? -1 : lines.length);
+            if (lines != null) {
+                for (int line : lines) {
+                    out.writeInt(line);
+                }
+            }
+        }
+        @Override
+        public CoverageElement read(final DataInput in) throws IOException {
+            CoverageElement el = new CoverageElement(in.readUTF(),
+                    in.readInt(), in.readInt());
+            int count = in.readInt();
+            if (count >= 0) {
+                int[] lines = new int[count];
+                for (int i = 0; i < count; i++) {
+                    lines[i] = in.readInt();
+                }
+                el.setUncoveredLines(lines);
+            }
+            return el;
+        }
+        @Override
+        public long size(final CoverageElement el) {
+            int[] lines = el.getUncoveredLines();
+            return 80 + 2L * el.getClassName().length()
+                    + (lines == null ? 0 : 16 + 4L * lines.length);
+        }
+    }
+    /**
+     * Test element serialization.
+     */
+    private static class TestCodec
+            implements ExternalSorter.Codec<TestElement> {
+        @Override
+        public void write(final DataOutput out, final TestElement el)
+                throws IOException {
+            out.writeUTF(el.getClassName());
+            out.writeUTF(el.getMethodName());
+            out.writeDouble(el.getDuration());
+            out.writeBoolean(el.isSeeAllData());
+            out.writeBoolean(el.isIsFail());
+            out.writeInt(el.getFailureId());
+        }
+        @Override
+        public TestElement read(final DataInput in) throws IOException {
+            TestElement el = new TestElement();
+            el.setClassName(in.readUTF());
+            el.setMethodName(in.readUTF());
+            el.setDuration(in.readDouble());
+            el.setSeeAllData(in.readBoolean());
+            el.setIsFail(in.readBoolean());
+            el.setFailureId(in.readInt());
+            return el;
+        }
+        @Override
+        public long size(final TestElement el) {
+            return 120 + 2L * (el.getClassName().length()
+                    + el.getMethodName().length());
+        }
+    }
+}
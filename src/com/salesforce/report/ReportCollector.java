@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the report model from the report events.
+ * In summary mode only failed tests and classes below the coverage limit are
+ * kept, which is enough to define the task state.
+ * @author ss
+ */
+public class ReportCollector implements ReportSink {
+    /** Keep only failed tests and low coverage classes. */
+    private final boolean summary;
+    /** Coverage percent limit for summary mode. */
+    private final int coverageLimit;
+    /** Collected classes. */
+    private final List<CoverageElement> classes = new ArrayList<>();
+    /** Collected tests. */
+    private final List<TestElement> methods = new ArrayList<>();
+    /** Collected failures. */
+    private final List<FailureElement> failures = new ArrayList<>();
+    /** Number of classes with coverage, collected or not. */
+    private int classCount;
+    /** Report. */
+    private XMLCoverageReport report;
+    /**
+     * Constructor.
+     * @param summary keep only failed tests and low coverage classes.
+     * @param coverageLimit coverage percent limit for summary mode.
+     */
+    public ReportCollector(final boolean summary, final int coverageLimit) {
+        this.summary = summary;
+        this.coverageLimit = coverageLimit;
+    }
+    @Override
+    public void start(final ReportContext context) {
+        XMLCoverageReport totals = context.getTotals();
+        report = new XMLCoverageReport();
+        report.setFail(totals.getFail());
+        report.setSuccess(totals.getSuccess());
+        report.setTotalLines(totals.getTotalLines());
+        report.setTotalCoverageLines(totals.getTotalCoverageLines());
+        report.setTotalPercent(totals.getTotalPercent());
+        report.setClasses(classes);
+        report.setMethods(methods);
+        report.setFailures(failures);
+        classCount = 0;
+    }
+    @Override
+    public void coverage(final CoverageElement element) {
+        classCount++;
+        if (!summary || element.getCoveragePercent() < coverageLimit) {
+            classes.add(element);
+        }
+    }
+    @Override
+    public void failure(final FailureElement failure) {
+        failures.add(failure);
+    }
+    @Override
+    public void test(final TestElement test) {
+        if (!summary || test.isIsFail()) {
+            methods.add(test);
+        }
+    }
+    @Override
+    public void end() {
+    }
+    /**
+     * @return collected report.
+     */
+    public XMLCoverageReport getReport() {
+        return report;
+    }
+    /**
+     * @return number of classes with coverage, in summary mode too.
+     */
+    public int getClassCount() {
+        return classCount;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import com.salesforce.ant.TestTask;
+import java.io.File;
+
+/**
+ * Report folder, task and totals, known before the report events.
+ * @author ss
+ */
+public class ReportContext {
+    /** Report folder. */
+    private final File folder;
+    /** Ant task. */
+    private final TestTask task;
+    /** Report totals, lists are not set. */
+    private final XMLCoverageReport totals;
+    /**
+     * Constructor.
+     * @param folder report folder.
+     * @param task ant task.
+     * @param totals report totals.
+     */
+    public ReportContext(final File folder, final TestTask task,
+            final XMLCoverageReport totals) {
+        this.folder = folder;
+        this.task = task;
+        this.totals = totals;
+    }
+    /**
+     * @return report folder, exists.
+     */
+    public File getFolder() {
+        return folder;
+    }
+    /**
+     * @return ant task.
+     */
+    public TestTask getTask() {
+        return task;
+    }
+    /**
+     * @return coverage level.
+     */
+    public CoverageLevel getCoverageLevel() {
+        return task.getCoverage();
+    }
+    /**
+     * @return report totals, without classes, methods and failures.
+     */
+    public XMLCoverageReport getTotals() {
+        return totals;
+    }
+}
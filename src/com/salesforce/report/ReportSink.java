@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.io.IOException;
+
+/**
+ * Report output format.
+ * Receives one ordered stream of report events: coverage of classes in class
+ * name order, then distinct failures in id order, then tests in class and
+ * method order, then end. Sinks can be added to the task with the nested
+ * 'sink' element, such sink needs a public no-arg constructor.
+ * @author ss
+ */
+public interface ReportSink extends AutoCloseable {
+    /**
+     * Report started.
+     * @param context report folder, task and totals.
+     * @throws Exception error.
+     */
+    void start(ReportContext context) throws Exception;
+    /**
+     * Coverage of one class.
+     * @param element coverage element.
+     * @throws Exception error.
+     */
+    void coverage(CoverageElement element) throws Exception;
+    /**
+     * Distinct failure, tests refer to it by id.
+     * @param failure failure element.
+     * @throws Exception error.
+     */
+    void failure(FailureElement failure) throws Exception;
+    /**
+     * Result of one test method.
+     * @param test test element.
+     * @throws Exception error.
+     */
+    void test(TestElement test) throws Exception;
+    /**
+     * All events are sent.
+     * @throws Exception error.
+     */
+    void end() throws Exception;
+    /**
+     * Release resources, called after end or on error.
+     * @throws IOException error.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import com.salesforce.ant.TestTask;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Sends the report to all sinks in one pass over the builder streams.
+ * Analysis sinks get their own pass before the output sinks, so the outputs
+ * can use their results.
+ * @author ss
+ */
+public class ReportWriter {
+    /** Report folder. */
+    private final File folder;
+    /** Ant task. */
+    private final TestTask task;
+    /** Sinks. */
+    private final List<ReportSink> sinks = new ArrayList<>();
+    /** Sinks which run before the other sinks. */
+    private final List<ReportSink> analysis = new ArrayList<>();
+    /**
+     * Constructor.
+     * @param folder report folder.
+     * @param task ant task.
+     */
+    public ReportWriter(final File folder, final TestTask task) {
+        this.folder = folder;
+        this.task = task;
+    }
+    /**
+     * @param sink report sink.
+     */
+    public void addSink(final ReportSink sink) {
+        sinks.add(sink);
+    }
+    /**
+     * @param sink sink which must see the whole report before other sinks.
+     */
+    public void addAnalysis(final ReportSink sink) {
+        analysis.add(sink);
+    }
+    /**
+     * Write report.
+     * @param builder aggregated test result.
+     * @throws BuildException error.
+     */
+    public void write(final ReportBuilder builder) throws BuildException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        ReportContext context = new ReportContext(folder, task,
+                builder.totals());
+        try {
+            if (!analysis.isEmpty()) {
+                pass(builder, context, analysis);
+            }
+            pass(builder, context, sinks);
+        } catch (Exception e) {
+            throw new BuildException("create coverage report fail!", e);
+        } finally {
+            List<ReportSink> all = new ArrayList<>(analysis);
+            all.addAll(sinks);
+            for (ReportSink sink : all) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    task.log("close report sink fail [" + e + "]");
+                }
+            }
+        }
+    }
+    /**
+     * Send all events to sinks.
+     * @param builder aggregated test result.
+     * @param context report context.
+     * @param targets sinks.
+     * @throws Exception error.
+     */
+    private static void pass(final ReportBuilder builder,
+            final ReportContext context, final List<ReportSink> targets)
+            throws Exception {
+        for (ReportSink sink : targets) {
+            sink.start(context);
+        }
+        for (Iterator<CoverageElement> it = builder.coverage();
+                it.hasNext();) {
+            CoverageElement el = it.next();
+            for (ReportSink sink : targets) {
+                sink.coverage(el);
+            }
+        }
+        for (FailureElement el : builder.getFailures()) {
+            for (ReportSink sink : targets) {
+                sink.failure(el);
+            }
+        }
+        for (Iterator<TestElement> it = builder.tests(); it.hasNext();) {
+            TestElement el = it.next();
+            for (ReportSink sink : targets) {
+                sink.test(el);
+            }
+        }
+        for (ReportSink sink : targets) {
+            sink.end();
+        }
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column store of test method results of many runs.
+ * Class and method names are dictionary encoded, duration is a float column,
+ * fail and seeAllData are bit sets. A row is appended without creating
+ * objects, aggregates by class are computed by a scan over the columns.
+ * Rows of a run are contiguous, runs go in time order.
+ * <p>
+ * A store opened from a file maps the columns read-only, the first append
+ * copies them to the heap.
+ * @author ss
+ */
+public class ResultStore {
+    /** File magic. */
+    private static final int MAGIC = 0x53535253;
+    /** File format version. */
+    private static final int VERSION = 1;
+    /** Initial column capacity. */
+    private static final int CAPACITY = 256;
+    /** Names by id. */
+    private final List<String> names = new ArrayList<>();
+    /** Ids by name. */
+    private final Map<String, Integer> ids = new HashMap<>();
+    /** Time of runs. */
+    private LongBuffer runTimes;
+    /** Number of runs. */
+    private int runs;
+    /** Run column. */
+    private IntBuffer runColumn;
+    /** Class name id column. */
+    private IntBuffer classColumn;
+    /** Method name id column. */
+    private IntBuffer methodColumn;
+    /** Duration column. */
+    private FloatBuffer durationColumn;
+    /** Failed rows. */
+    private BitSet fail = new BitSet();
+    /** SeeAllData rows. */
+    private BitSet seeAllData = new BitSet();
+    /** Number of rows. */
+    private int size;
+    /** Columns are mapped from file. */
+    private boolean mapped;
+    /**
+     * Constructor of empty store.
+     */
+    public ResultStore() {
+        runTimes = LongBuffer.allocate(16);
+        allocate(CAPACITY);
+    }
+    /**
+     * Map store file, missing file means empty store.
+     * @param file store file.
+     * @return store.
+     * @throws IOException error or broken file.
+     */
+    public static ResultStore open(final File file) throws IOException {
+        ResultStore store = new ResultStore();
+        if (!file.exists()) {
+            return store;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            store.read(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        }
+        return store;
+    }
+    /**
+     * Start new run.
+     * @param time run time.
+     * @return run id.
+     */
+    public int addRun(final long time) {
+        if (runs == runTimes.capacity()) {
+            runTimes = copy(runTimes, runs, runs * 2);
+        }
+        runTimes.put(runs, time);
+        return runs++;
+    }
+    /**
+     * Append test result.
+     * @param run run id.
+     * @param te test result.
+     */
+    public void append(final int run, final TestElement te) {
+        append(run, te.getClassName(), te.getMethodName(),
+                (float) te.getDuration(), te.isIsFail(), te.isSeeAllData());
+    }
+    /**
+     * Append test result.
+     * @param run run id.
+     * @param className test class name.
+     * @param methodName test method name.
+     * @param duration duration.
+     * @param isFail test failed.
+     * @param isSeeAllData test sees all data.
+     */
+    public void append(final int run, final String className,
+            final String methodName, final float duration,
+            final boolean isFail, final boolean isSeeAllData) {
+        if (mapped || size == runColumn.capacity()) {
+            grow(Math.max(CAPACITY, size * 2));
+        }
+        runColumn.put(size, run);
+        classColumn.put(size, id(className));
+        methodColumn.put(size, id(methodName));
+        durationColumn.put(size, duration);
+        fail.set(size, isFail);
+        seeAllData.set(size, isSeeAllData);
+        size++;
+    }
+    /**
+     * Scan rows and aggregate them by test class.
+     * @param from first row.
+     * @param to row after the last one.
+     * @param visitor receives aggregates in order of the first class row.
+     */
+    public void forEachClass(final int from, final int to,
+            final ClassVisitor visitor) {
+        int[] tests = new int[names.size()];
+        int[] failures = new int[names.size()];
+        double[] durations = new double[names.size()];
+        int[] order = new int[names.size()];
+        int classes = 0;
+        for (int row = from; row < to; row++) {
+            int id = classColumn.get(row);
+            if (tests[id]++ == 0) {
+                order[classes++] = id;
+            }
+            durations[id] += durationColumn.get(row);
+        }
+        for (int row = fail.nextSetBit(from); row >= 0 && row < to;
+                row = fail.nextSetBit(row + 1)) {
+            failures[classColumn.get(row)]++;
+        }
+        for (int i = 0; i < classes; i++) {
+            int id = order[i];
+            visitor.visit(names.get(id), tests[id], failures[id],
+                    durations[id]);
+        }
+    }
+    /**
+     * Drop the oldest runs and names which are no longer used.
+     * @param keep number of last runs to keep.
+     */
+    public void retainRuns(final int keep) {
+        if (runs <= keep) {
+            return;
+        }
+        int dropped = runs - keep;
+        int from = 0;
+        while (from < size && runColumn.get(from) < dropped) {
+            from++;
+        }
+        List<String> old = new ArrayList<>(names);
+        names.clear();
+        ids.clear();
+        int capacity = Math.max(CAPACITY, size - from);
+        IntBuffer runCopy = IntBuffer.allocate(capacity);
+        IntBuffer classCopy = IntBuffer.allocate(capacity);
+        IntBuffer methodCopy = IntBuffer.allocate(capacity);
+        FloatBuffer durationCopy = FloatBuffer.allocate(capacity);
+        for (int row = from; row < size; row++) {
+            int to = row - from;
+            runCopy.put(to, runColumn.get(row) - dropped);
+            classCopy.put(to, id(old.get(classColumn.get(row))));
+            methodCopy.put(to, id(old.get(methodColumn.get(row))));
+            durationCopy.put(to, durationColumn.get(row));
+        }
+        runColumn = runCopy;
+        classColumn = classCopy;
+        methodColumn = methodCopy;
+        durationColumn = durationCopy;
+        fail = fail.get(from, Math.max(from, size));
+        seeAllData = seeAllData.get(from, Math.max(from, size));
+        LongBuffer times = LongBuffer.allocate(Math.max(16, keep));
+        for (int i = 0; i < keep; i++) {
+            times.put(i, runTimes.get(dropped + i));
+        }
+        runTimes = times;
+        runs = keep;
+        size -= from;
+        mapped = false;
+    }
+    /**
+     * Save store. It's written to a temporary file which then replaces the
+     * old one, so a mapped copy of the old file stays intact.
+     * @param file store file.
+     * @throws IOException error.
+     */
+    public void save(final File file) throws IOException {
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        Path temp = Files.createTempFile(folder.toPath(), file.getName(),
+                ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                write(out);
+            }
+            Files.move(temp, file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    /**
+     * Write store content.
+     * @param out output.
+     * @throws IOException error.
+     */
+    private void write(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size);
+        out.writeInt(runs);
+        out.writeInt(names.size());
+        for (int i = 0; i < runs; i++) {
+            out.writeLong(runTimes.get(i));
+        }
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        for (IntBuffer column : new IntBuffer[] {runColumn, classColumn,
+                methodColumn}) {
+            for (int i = 0; i < size; i++) {
+                out.writeInt(column.get(i));
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeFloat(durationColumn.get(i));
+        }
+        for (BitSet bits : new BitSet[] {fail, seeAllData}) {
+            long[] words = bits.toLongArray();
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        }
+    }
+    /**
+     * @return number of rows.
+     */
+    public int size() {
+        return size;
+    }
+    /**
+     * @return number of runs.
+     */
+    public int getRuns() {
+        return runs;
+    }
+    /**
+     * @param run run id.
+     * @return run time.
+     */
+    public long getRunTime(final int run) {
+        return runTimes.get(run);
+    }
+    /**
+     * @param row row.
+     * @return run id.
+     */
+    public int getRun(final int row) {
+        return runColumn.get(row);
+    }
+    /**
+     * @param row row.
+     * @return test class name.
+     */
+    public String getClassName(final int row) {
+        return names.get(classColumn.get(row));
+    }
+    /**
+     * @param row row.
+     * @return test method name.
+     */
+    public String getMethodName(final int row) {
+        return names.get(methodColumn.get(row));
+    }
+    /**
+     * @param row row.
+     * @return duration.
+     */
+    public float getDuration(final int row) {
+        return durationColumn.get(row);
+    }
+    /**
+     * @param row row.
+     * @return true if the test failed.
+     */
+    public boolean isFail(final int row) {
+        return fail.get(row);
+    }
+    /**
+     * @param row row.
+     * @return true if the test sees all data.
+     */
+    public boolean isSeeAllData(final int row) {
+        return seeAllData.get(row);
+    }
+    /**
+     * @param name class or method name.
+     * @return dictionary id, added if new.
+     */
+    private int id(final String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+    /**
+     * Read columns from the buffer, column buffers are views of it.
+     * @param buf store file content.
+     * @throws IOException broken file.
+     */
+    private void read(final ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 20 || buf.getInt() != MAGIC
+                || buf.getInt() != VERSION) {
+            throw new IOException("not a result store");
+        }
+        int rows = buf.getInt();
+        int runCount = buf.getInt();
+        int nameCount = buf.getInt();
+        runTimes = LongBuffer.allocate(Math.max(16, runCount));
+        for (int i = 0; i < runCount; i++) {
+            runTimes.put(i, buf.getLong());
+        }
+        for (int i = 0; i < nameCount; i++) {
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            id(new String(bytes, StandardCharsets.UTF_8));
+        }
+        runColumn = view(buf, rows * 4).asIntBuffer();
+        classColumn = view(buf, rows * 4).asIntBuffer();
+        methodColumn = view(buf, rows * 4).asIntBuffer();
+        durationColumn = view(buf, rows * 4).asFloatBuffer();
+        fail = BitSet.valueOf(view(buf, buf.getInt() * 8).asLongBuffer());
+        seeAllData = BitSet.valueOf(view(buf, buf.getInt() * 8)
+                .asLongBuffer());
+        runs = runCount;
+        size = rows;
+        mapped = true;
+    }
+    /**
+     * Take part of the buffer and move past it.
+     * @param buf buffer.
+     * @param bytes part length.
+     * @return part.
+     */
+    private static ByteBuffer view(final ByteBuffer buf, final int bytes) {
+        ByteBuffer part = buf.slice();
+        part.limit(bytes);
+        buf.position(buf.position() + bytes);
+        return part.slice();
+    }
+    /**
+     * Allocate empty heap columns.
+     * @param capacity rows capacity.
+     */
+    private void allocate(final int capacity) {
+        runColumn = IntBuffer.allocate(capacity);
+        classColumn = IntBuffer.allocate(capacity);
+        methodColumn = IntBuffer.allocate(capacity);
+        durationColumn = FloatBuffer.allocate(capacity);
+    }
+    /**
+     * Copy columns to the heap with new capacity.
+     * @param capacity rows capacity.
+     */
+    private void grow(final int capacity) {
+        runColumn = copy(runColumn, size, capacity);
+        classColumn = copy(classColumn, size, capacity);
+        methodColumn = copy(methodColumn, size, capacity);
+        FloatBuffer durations = FloatBuffer.allocate(capacity);
+        for (int i = 0; i < size; i++) {
+            durations.put(i, durationColumn.get(i));
+        }
+        durationColumn = durations;
+        mapped = false;
+    }
+    /**
+     * @param column column.
+     * @param length values to copy.
+     * @param capacity new capacity.
+     * @return heap copy.
+     */
+    private static IntBuffer copy(final IntBuffer column, final int length,
+            final int capacity) {
+        IntBuffer copy = IntBuffer.allocate(capacity);
+        for (int i = 0; i < length; i++) {
+            copy.put(i, column.get(i));
+        }
+        return copy;
+    }
+    /**
+     * @param column column.
+     * @param length values to copy.
+     * @param capacity new capacity.
+     * @return heap copy.
+     */
+    private static LongBuffer copy(final LongBuffer column, final int length,
+            final int capacity) {
+        LongBuffer copy = LongBuffer.allocate(capacity);
+        for (int i = 0; i < length; i++) {
+            copy.put(i, column.get(i));
+        }
+        return copy;
+    }
+// ============================================================================
+    /**
+     * Receives aggregates of one test class.
+     */
+    public interface ClassVisitor {
+        /**
+         * @param className test class name.
+         * @param tests number of test rows.
+         * @param failures number of failed rows.
+         * @param duration sum of durations.
+         */
+        void visit(String className, int tests, int failures,
+                double duration);
+    }
+}
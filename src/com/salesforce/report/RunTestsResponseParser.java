@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 ss.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.salesforce.report;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming parser of the 'runTests' SOAP response.
+ * Coverage entries, failures and successes are passed to the report
+ * builder one by one, the whole API result is never created.
+ * @author ss
+ */
+public class RunTestsResponseParser {
+    /** XML schema instance namespace. */
+    private static final String XSI =
+            "http://www.w3.org/2001/XMLSchema-instance";
+    /** Coverage section. */
+    private static final String CODE_COVERAGE = "codeCoverage";
+    /** Failure section. */
+    private static final String FAILURES = "failures";
+    /** Success section. */
+    private static final String SUCCESSES = "successes";
+    /** Simple fields which are read, other fields are skipped. */
+    private static final Set<String> FIELDS = new HashSet<>(Arrays.asList(
+            "name", "methodName", "time", "seeAllData", "message",
+            "stackTrace", "numLocations", "numLocationsNotCovered",
+            "line", "faultcode", "faultstring"));
+    /** Input factory. */
+    private static final XMLInputFactory FACTORY = createFactory();
+    /** Report builder. */
+    private final ReportBuilder builder;
+    /** Total time from the response. */
+    private double totalTime;
+    /**
+     * Constructor.
+     * @param builder report builder.
+     */
+    public RunTestsResponseParser(final ReportBuilder builder) {
+        this.builder = builder;
+    }
+    /**
+     * Parse response.
+     * @param in SOAP response stream.
+     * @throws IOException SOAP fault or broken response.
+     */
+    public void parse(final InputStream in) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(in, "UTF-8");
+            int depth = 0;
+            int resultDepth = -1;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String name = reader.getLocalName();
+                if ("Fault".equals(name)) {
+                    throw new IOException("SOAP fault: "
+                            + readSection(reader, null).get("faultstring"));
+                } else if ("result".equals(name) && resultDepth < 0) {
+                    resultDepth = depth;
+                } else if (depth == resultDepth + 1) {
+                    if (CODE_COVERAGE.equals(name)) {
+                        // lines are kept to combine coverage of batches
+                        List<Integer> lines = builder.getCoverageLevel()
+                                != CoverageLevel.NONE ? new ArrayList<>()
+                                : null;
+                        dispatchCoverage(readSection(reader, lines), lines);
+                        depth--;
+                    } else if (FAILURES.equals(name)
+                            || SUCCESSES.equals(name)) {
+                        dispatch(name, readSection(reader, null));
+                        depth--;
+                    } else if ("totalTime".equals(name)) {
+                        totalTime = toDouble(reader.getElementText());
+                        depth--;
+                    }
+                }
+            }
+            if (resultDepth < 0) {
+                throw new IOException("runTests result not found");
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("broken runTests response", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing to do, stream is closed by the caller.
+                }
+            }
+        }
+    }
+    /**
+     * @return total time from the response.
+     */
+    public double getTotalTime() {
+        return totalTime;
+    }
+    /**
+     * Read simple child elements of the current element, nested complex
+     * elements are skipped. Reader stops at the end of the current element.
+     * @param reader reader.
+     * @param lines target for not covered lines, not read if null.
+     * @return values by element name, nil values are absent.
+     * @throws XMLStreamException error.
+     */
+    private Map<String, String> readSection(final XMLStreamReader reader,
+            final List<Integer> lines) throws XMLStreamException {
+        Map<String, String> values = new HashMap<>();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            // every child is read or skipped up to its end element
+            String name = reader.getLocalName();
+            if (lines != null && "locationsNotCovered".equals(name)) {
+                String line = readSection(reader, null).get("line");
+                if (line != null) {
+                    lines.add(toInt(line));
+                }
+            } else if (!FIELDS.contains(name) || "true".equals(
+                    reader.getAttributeValue(XSI, "nil"))) {
+                skip(reader);
+            } else {
+                values.put(name, reader.getElementText());
+            }
+        }
+        return values;
+    }
+    /**
+     * Skip current element with all children.
+     * @param reader reader.
+     * @throws XMLStreamException error.
+     */
+    private static void skip(final XMLStreamReader reader)
+            throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+    /**
+     * Pass parsed coverage to the builder.
+     * @param v coverage values.
+     * @param lines not covered lines or null.
+     */
+    private void dispatchCoverage(final Map<String, String> v,
+            final List<Integer> lines) {
+        String name = v.get("name");
+        if (!builder.acceptsCoverage(name)) {
+            return;
+        }
+        CoverageElement element = new CoverageElement(name,
+                toInt(v.get("numLocations")),
+                toInt(v.get("numLocationsNotCovered")));
+        if (lines != null) {
+            int[] uncovered = new int[lines.size()];
+            for (int i = 0; i < uncovered.length; i++) {
+                uncovered[i] = lines.get(i);
+            }
+            element.setUncoveredLines(uncovered);
+        }
+        builder.addCoverage(element);
+    }
+    /**
+     * Pass parsed test section to the builder.
+     * @param section section name.
+     * @param v section values.
+     */
+    private void dispatch(final String section, final Map<String, String> v) {
+        String name = v.get("name");
+        if (FAILURES.equals(section)) {
+            builder.addFailure(name, v.get("methodName"),
+                    toDouble(v.get("time")),
+                    Boolean.parseBoolean(v.get("seeAllData")),
+                    v.get("message"), v.get("stackTrace"));
+        } else {
+            builder.addSuccess(name, v.get("methodName"),
+                    toDouble(v.get("time")),
+                    Boolean.parseBoolean(v.get("seeAllData")));
+        }
+    }
+    /**
+     * @param value text value.
+     * @return int value, 0 if empty.
+     */
+    private static int toInt(final String value) {
+        return value == null || value.isEmpty()
+                ? 0 : Integer.parseInt(value.trim());
+    }
+    /**
+     * @param value text value.
+     * @return double value, 0 if empty.
+     */
+    private static double toDouble(final String value) {
+        return value == null || value.isEmpty()
+                ? 0 : Double.parseDouble(value.trim());
+    }
+    /**
+     * @return secure input factory.
+     */
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -23,9 +23,6 @@
  */
 package com.salesforce.report;
 
-import com.sforce.soap.apex.RunTestFailure;
-import com.sforce.soap.apex.RunTestSuccess;
-
 /**
  * Test element.
  * @author ss
@@ -43,10 +40,8 @@ public class TestElement implements Comparable<TestElement> {
     private double duration;
     /** Test method is failed?. */
     private boolean isFail;
-    /** Fail message. */
-    private String failMessage;
-    /** Stacktrace. */
-    private String stackTrace;
+    /** Id of the failure in the report failures table, 0 if passed. */
+    private int failureId;
     /** Test where enabled 'See all data'. */
     private boolean seeAllData;
     /**
@@ -56,27 +51,21 @@ public class TestElement implements Comparable<TestElement> {
     }
     /**
      * Constructor.
-     * @param state test state.
-     */
-    public TestElement(final RunTestFailure state) {
-        this.methodName = state.getMethodName();
-        this.className = state.getName();
-        this.isFail = true;
-        this.duration = state.getTime();
-        this.failMessage = state.getMessage();
-        this.stackTrace = state.getStackTrace();
-        this.seeAllData = state.getSeeAllData();
-    }
-    /**
-     * Constructor.
-     * @param state test state.
-     */
-    public TestElement(final RunTestSuccess state) {
-        this.className = state.getName();
-        this.methodName = state.getMethodName();
-        this.isFail = false;
-        this.duration = state.getTime();
-        this.seeAllData = state.getSeeAllData();
+     * @param className class name.
+     * @param methodName method name.
+     * @param duration duration.
+     * @param seeAllData 'See all data' enabled.
+     * @param failure shared failure element, null for successful test.
+     */
+    public TestElement(final String className, final String methodName,
+            final double duration, final boolean seeAllData,
+            final FailureElement failure) {
+        this.className = className;
+        this.methodName = methodName;
+        this.duration = duration;
+        this.seeAllData = seeAllData;
+        this.isFail = failure != null;
+        this.failureId = failure == null ? 0 : failure.getId();
     }
     /**
      * Represent as HTML row.
@@ -86,8 +75,12 @@ public class TestElement implements Comparable<TestElement> {
         StringBuilder sb = new StringBuilder();
         sb.append("<tr>");
         sb.append("<td class=\"col-method-name\">").append(methodName).append("</td>");
-        sb.append("<td class=\"error\">").append(failMessage == null ? "" : failMessage)
-                .append("</td>");
+        sb.append("<td class=\"error\">");
+        if (failureId > 0) {
+            sb.append("<a href=\"#failure-").append(failureId).append("\">#")
+                    .append(failureId).append("</a>");
+        }
+        sb.append("</td>");
         sb.append("<td class=\"col-state ")
                 .append(isFail ? "error" : "success")
                 .append("\">").append(isFail ? SIGN_FALSE : SIGN_TRUE)
@@ -142,28 +135,16 @@ public class TestElement implements Comparable<TestElement> {
         this.isFail = isFail;
     }
     /**
-     * @return the failMessage
-     */
-    public String getFailMessage() {
-        return failMessage;
-    }
-    /**
-     * @param failMessage the failMessage to set
-     */
-    public void setFailMessage(String failMessage) {
-        this.failMessage = failMessage;
-    }
-    /**
-     * @return the stackTrace
+     * @return the failureId
      */
-    public String getStackTrace() {
-        return stackTrace;
+    public int getFailureId() {
+        return failureId;
     }
     /**
-     * @param stackTrace the stackTrace to set
+     * @param failureId the failureId to set
      */
-    public void setStackTrace(String stackTrace) {
-        this.stackTrace = stackTrace;
+    public void setFailureId(int failureId) {
+        this.failureId = failureId;
     }
     /**
      * @return the seeAllData
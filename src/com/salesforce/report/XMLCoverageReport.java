@@ -36,6 +36,8 @@ public class XMLCoverageReport {
     private List<CoverageElement> classes;
     /** Coverage information for methods. */
     private List<TestElement> methods;
+    /** Distinct failures, referenced by tests. */
+    private List<FailureElement> failures;
     /** Total coverage percent. */
     private float totalPercent;
     /** Total coverage lines. */
@@ -70,6 +72,18 @@ public class XMLCoverageReport {
     public void setMethods(List<TestElement> methods) {
         this.methods = methods;
     }
+    /**
+     * @return the failures
+     */
+    public List<FailureElement> getFailures() {
+        return failures;
+    }
+    /**
+     * @param failures the failures to set
+     */
+    public void setFailures(List<FailureElement> failures) {
+        this.failures = failures;
+    }
     /**
      * @return the totalPercent
      */
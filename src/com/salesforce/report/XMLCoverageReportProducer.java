@@ -23,125 +23,114 @@
  */
 package com.salesforce.report;
 
-import com.salesforce.ant.TestTask;
-import com.sforce.soap.apex.CodeCoverageResult;
-import com.sforce.soap.apex.RunTestFailure;
-import com.sforce.soap.apex.RunTestSuccess;
-import com.sforce.soap.apex.RunTestsResult;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
-import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.types.LogLevel;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * XML coverage report producer.
+ * Elements are marshalled one by one into the stream, so the file can be read
+ * back as {@link XMLCoverageReport}.
  * @author ss
  */
-public class XMLCoverageReportProducer {
-    /** Tests result. */
-    private final RunTestsResult result;
-    /** Ant task. */
-    private final TestTask task;
+public class XMLCoverageReportProducer implements ReportSink {
+    /** XML file name. */
+    public static final String XML_FILE_NAME = "coverage-report.xml";
+    /** Shared JAXB context, it is thread safe and expensive to create. */
+    private static JAXBContext jaxbContext;
+    /** Element marshaller. */
+    private Marshaller marshaller;
+    /** Report totals. */
+    private XMLCoverageReport totals;
+    /** File stream. */
+    private OutputStream stream;
+    /** XML writer. */
+    private XMLStreamWriter out;
     /**
-     * Constructor.
-     * @param result result.
-     * @param task ant task.
+     * Get JAXB context of the report, it is created on the first call.
+     * @return JAXB context.
+     * @throws JAXBException error.
      */
-    public XMLCoverageReportProducer(final RunTestsResult result,
-            final TestTask task) {
-        this.task = task;
-        this.result = result;
+    public static synchronized JAXBContext getJAXBContext()
+            throws JAXBException {
+        if (jaxbContext == null) {
+            jaxbContext = JAXBContext.newInstance(XMLCoverageReport.class);
+        }
+        return jaxbContext;
     }
-    /**
-     * Create report.
-     * @return report.
-     * @throws BuildException error.
-     */
-    public XMLCoverageReport createReport() throws BuildException {
-        try {
-            JAXBContext jaxbContext = JAXBContext
-                    .newInstance(XMLCoverageReport.class);
-            Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-            jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            XMLCoverageReport report = createReportProcess();
-            File folder = new File(TestTask.REPORT_FOLDER_NAME);
-            if (!folder.exists()) {
-                folder.mkdirs();
+    @Override
+    public void start(final ReportContext context) throws Exception {
+        JAXBContext jaxbContext = getJAXBContext();
+        marshaller = jaxbContext.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        QName root = jaxbContext.createJAXBIntrospector()
+                .getElementName(new XMLCoverageReport());
+        totals = context.getTotals();
+        stream = new FileOutputStream(new File(context.getFolder(),
+                XML_FILE_NAME));
+        out = XMLOutputFactory.newInstance()
+                .createXMLStreamWriter(stream, "UTF-8");
+        out.writeStartDocument("UTF-8", "1.0");
+        out.writeStartElement(root.getLocalPart());
+    }
+    @Override
+    public void coverage(final CoverageElement element) throws Exception {
+        marshaller.marshal(new JAXBElement<>(new QName("classes"),
+                CoverageElement.class, element), out);
+    }
+    @Override
+    public void failure(final FailureElement failure) throws Exception {
+        marshaller.marshal(new JAXBElement<>(new QName("failures"),
+                FailureElement.class, failure), out);
+    }
+    @Override
+    public void test(final TestElement test) throws Exception {
+        marshaller.marshal(new JAXBElement<>(new QName("methods"),
+                TestElement.class, test), out);
+    }
+    @Override
+    public void end() throws Exception {
+        writeValue("fail", totals.getFail());
+        writeValue("success", totals.getSuccess());
+        writeValue("totalCoverageLines", totals.getTotalCoverageLines());
+        writeValue("totalLines", totals.getTotalLines());
+        writeValue("totalPercent", totals.getTotalPercent());
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.flush();
+    }
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
             }
-            jaxbMarshaller.marshal(report,
-                    new File(folder, "coverage-report.xml"));
-            return report;
-        } catch (Exception ex) {
-            throw new BuildException(ex);
+        }
+        if (stream != null) {
+            stream.close();
         }
     }
     /**
-     * Create report.
-     * @return report.
+     * Write simple element.
+     * @param name element name.
+     * @param value value.
      * @throws Exception error.
      */
-    private XMLCoverageReport createReportProcess() throws Exception {
-        XMLCoverageReport report = new XMLCoverageReport();
-        Set<String> classes = task.getProjectClassesAndTriggers();
-        // classes
-        CodeCoverageResult[] coverageResult = result.getCodeCoverage();
-        List<CoverageElement> elements = new ArrayList<>();
-        for (CodeCoverageResult ccr : coverageResult) {
-            task.log("coverage name [" + ccr.getName() + "]",
-                    LogLevel.DEBUG.getLevel());
-            if (!classes.contains(ccr.getName())) {
-                continue;
-            }
-            CoverageElement element = new CoverageElement(ccr);
-            elements.add(element);
-        }
-        Collections.sort(elements, (CoverageElement o1, CoverageElement o2) -> {
-            return o1.getClassName().compareTo(o2.getClassName());
-        });
-        int totalLines = 0;
-        int totalCoverageLines = 0;
-        for (CoverageElement el : elements) {
-            totalLines += el.getTotalLines();
-            totalCoverageLines += el.getCoverageLines();
-        }
-        float percent = (((float) totalCoverageLines)
-                / ((float) totalLines)) * 100;
-        report.setClasses(elements);
-        report.setFail(result.getFailures().length);
-        report.setSuccess(result.getSuccesses().length);
-        report.setTotalCoverageLines(totalCoverageLines);
-        report.setTotalLines(totalLines);
-        report.setTotalPercent(percent);
-        // methods
-        RunTestFailure[] failTests = result.getFailures();
-        Map<String, List<TestElement>> testMap = new HashMap();
-        for (RunTestFailure fail : failTests) {
-            TestElement el = new TestElement(fail);
-            if (!testMap.containsKey(fail.getName())) {
-                testMap.put(fail.getName(), new ArrayList<>());
-            }
-            testMap.get(fail.getName()).add(el);
-        }
-        RunTestSuccess[] successTests = result.getSuccesses();
-        for (RunTestSuccess success : successTests) {
-            TestElement el = new TestElement(success);
-            if (!testMap.containsKey(success.getName())) {
-                testMap.put(success.getName(), new ArrayList<>());
-            }
-            testMap.get(success.getName()).add(el);
-        }
-        List<TestElement> tElements = new ArrayList<>();
-        testMap.values().forEach((tl) -> {
-            tElements.addAll(tl);
-        });
-        report.setMethods(new ArrayList<>(tElements));
-        return report;
+    private void writeValue(final String name, final Object value)
+            throws Exception {
+        out.writeStartElement(name);
+        out.writeCharacters(String.valueOf(value));
+        out.writeEndElement();
     }
 }